@@ -0,0 +1,292 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * a local content-addressable store of patch entries.
+ * <p>
+ * Each entry payload is stored once, in a file named after its SHA-256 digest, whatever the number
+ * of patches that contain it. A patch is then only a small manifest that reference blobs by digest,
+ * and a standalone patch zip can be materialized from a manifest with {@link #pack(File, File)}.
+ * <p>
+ * Layout of the store: <code>root/ab/cdef...</code> for the blob of digest <code>abcdef...</code>, and
+ * <code>root/tmp/</code> for blobs being written.
+ * <p>
+ * Manifest format (UTF-8, one record by line):
+ * <pre>
+ * jarpatch-manifest 1
+ * + &lt;sha256&gt; &lt;time&gt; &lt;entry name&gt;
+ * - &lt;deleted entry name&gt;
+ * </pre>
+ *
+ * @version $Revision$
+ */
+public class BlobStore {
+    static final String MANIFEST_HEADER = "jarpatch-manifest 1";
+    private static final String TMP_DIR = "tmp";
+
+    private final File froot;
+
+    /** open (and create if needed) the store located in the given directory */
+    public BlobStore(File root) throws IOException {
+        froot = root;
+        File tmp = new File(root, TMP_DIR);
+        if(!tmp.isDirectory() && !tmp.mkdirs())
+            throw new IOException("unable to create blob store in "+root);
+    }
+
+    /** return the directory of this store */
+    public File getRoot() {
+        return froot;
+    }
+
+    /** open a new blob: the payload is written to the returned stream, then stored by {@link BlobOutputStream#commit()} */
+    public BlobOutputStream newBlob() throws IOException {
+        return new BlobOutputStream(File.createTempFile("blob", ".tmp", new File(froot, TMP_DIR)));
+    }
+
+    /** return true if a blob with the given digest is present */
+    public boolean contains(String digest) {
+        return getBlobFile(digest).isFile();
+    }
+
+    /** open the blob of the given digest */
+    public InputStream getInputStream(String digest) throws IOException {
+        File blob = getBlobFile(digest);
+        if(!blob.isFile())
+            throw new FileNotFoundException("missing blob "+digest+" in "+froot);
+        return new FileInputStream(blob);
+    }
+
+    private File getBlobFile(String digest) {
+        if(digest.length() < 3 || !digest.matches("[0-9a-f]+"))
+            throw new IllegalArgumentException("invalid digest: "+digest);
+        return new File(new File(froot, digest.substring(0, 2)), digest.substring(2));
+    }
+
+    /** write a manifest referencing the given blobs.
+     *
+     * @param manifest - the manifest file to write
+     * @param entries - the entries of the patch, in patch order
+     * @param deleted - the names of the deleted entries, or an empty list
+     */
+    public void writeManifest(File manifest, List<ManifestEntry> entries, List<String> deleted) throws IOException {
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8))) {
+            out.write(MANIFEST_HEADER);
+            out.write('\n');
+            for(ManifestEntry e : entries) {
+                out.write("+ "+e.getDigest()+" "+e.getTime()+" "+e.getName());
+                out.write('\n');
+            }
+            for(String name : deleted) {
+                out.write("- "+name);
+                out.write('\n');
+            }
+        }
+    }
+
+    /** read back a manifest.
+     *
+     * @param manifest - the manifest to read
+     * @param entries - filled with the entries of the manifest
+     * @param deleted - filled with the deleted entries of the manifest
+     */
+    public static void readManifest(File manifest, List<ManifestEntry> entries, List<String> deleted) throws IOException {
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            if(!MANIFEST_HEADER.equals(in.readLine()))
+                throw new IOException(manifest+" is not a jarpatch manifest");
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.startsWith("+ ")) {
+                    String[] fields = line.split(" ", 4);
+                    if(fields.length != 4)
+                        throw new IOException("invalid manifest line in "+manifest+": "+line);
+                    try {
+                        entries.add(new ManifestEntry(fields[3], fields[1], Long.parseLong(fields[2])));
+                    } catch(NumberFormatException e) {
+                        throw new IOException("invalid manifest line in "+manifest+": "+line);
+                    }
+                } else if(line.startsWith("- ")) {
+                    deleted.add(line.substring(2));
+                } else if(!line.isEmpty()) {
+                    throw new IOException("invalid manifest line in "+manifest+": "+line);
+                }
+            }
+        }
+    }
+
+    /** materialize a standalone patch zip from the given manifest: it has the same entry names, times and contents,
+     * and the same deleted log, as the zip {@link JarPatch#buildPatch(File, File, java.util.regex.Pattern[], java.util.regex.Pattern[], File, boolean)}
+     * would have built. The manifest does not record the compression method, extra fields and comment of the
+     * entries, so every entry is deflated, without extra field or comment.
+     */
+    public void pack(File manifest, File zipPatchFile) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        readManifest(manifest, entries, deleted);
+        try(ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipPatchFile)))) {
+            byte[] buf = new byte[8 * 1024];
+            for(ManifestEntry e : entries) {
+                ZipEntry ze = new ZipEntry(e.getName());
+                if(e.getTime() != -1) ze.setTime(e.getTime());
+                out.putNextEntry(ze);
+                try(InputStream in = getInputStream(e.getDigest())) {
+                    int len;
+                    while((len = in.read(buf)) != -1)
+                        out.write(buf, 0, len);
+                }
+                out.closeEntry();
+            }
+            if(!deleted.isEmpty()) {
+                out.putNextEntry(new ZipEntry(JarPatch.DELLOG_NAME));
+                out.write(JarPatch.deletedLog(deleted).getBytes());
+                out.closeEntry();
+            }
+        }
+    }
+
+    /** delete all blobs that are not referenced by any of the given manifests.
+     * <p>
+     * The given manifests are the roots of the collection: a blob only referenced by a manifest
+     * that is not given is deleted. Must not run concurrently with a patch being written to this store.
+     *
+     * @return the number of deleted blobs
+     */
+    public int gc(File[] manifests) throws IOException {
+        Set<String> live = new HashSet<>();
+        for(File manifest : manifests) {
+            List<ManifestEntry> entries = new ArrayList<>();
+            readManifest(manifest, entries, new ArrayList<>());
+            for(ManifestEntry e : entries)
+                live.add(e.getDigest());
+        }
+        int deleted = 0;
+        File[] prefixes = froot.listFiles();
+        if(prefixes == null)
+            throw new IOException("unable to list blob store "+froot);
+        for(File prefix : prefixes) {
+            if(!prefix.isDirectory() || prefix.getName().length() != 2)
+                continue;
+            File[] blobs = prefix.listFiles();
+            if(blobs == null) continue;
+            for(File blob : blobs) {
+                if(!live.contains(prefix.getName() + blob.getName()) && blob.delete())
+                    deleted++;
+            }
+            prefix.delete(); // only succeed if empty
+        }
+        return deleted;
+    }
+
+    /** hex encoding of a digest */
+    static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for(byte b : digest)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /** one entry of a manifest: an entry name, its modification time and the digest of its payload */
+    public static class ManifestEntry {
+        private final String fname;
+        private final String fdigest;
+        private final long ftime;
+
+        public ManifestEntry(String name, String digest, long time) {
+            fname = name;
+            fdigest = digest;
+            ftime = time;
+        }
+
+        public String getName() { return fname; }
+        public String getDigest() { return fdigest; }
+        /** the modification time of the entry, or -1 if unknown */
+        public long getTime() { return ftime; }
+    }
+
+    /** a stream which store a new blob, keyed by the SHA-256 digest of what have been written */
+    public class BlobOutputStream extends OutputStream {
+        private final File ftmp;
+        private final OutputStream fout;
+        private final MessageDigest fdigest;
+        private String fcommitted;
+
+        private BlobOutputStream(File tmp) throws IOException {
+            ftmp = tmp;
+            fdigest = JarPatch.newSha256();
+            fout = new BufferedOutputStream(new FileOutputStream(tmp));
+        }
+
+        public void write(int b) throws IOException {
+            fout.write(b);
+            fdigest.update((byte)b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            fout.write(b, off, len);
+            fdigest.update(b, off, len);
+        }
+
+        /** move the written payload into the store, unless a blob with the same digest is already there.
+         * @return the digest of the blob
+         */
+        public String commit() throws IOException {
+            if(fcommitted != null) return fcommitted;
+            fout.close();
+            String digest = toHex(fdigest.digest());
+            File blob = getBlobFile(digest);
+            if(blob.isFile()) {
+                ftmp.delete();
+            } else {
+                File dir = blob.getParentFile();
+                if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                    throw new IOException("unable to create "+dir);
+                JarPatch.moveAtomically(ftmp, blob);
+            }
+            fcommitted = digest;
+            return digest;
+        }
+
+        /** discard the payload if it have not been committed */
+        public void close() throws IOException {
+            if(fcommitted == null) {
+                fout.close();
+                ftmp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.zip.ZipEntry;
+
+/**
+ * locate the central directory of a zip file, from its end of central directory record.
+ * <p>
+ * Only the tail of the file and the central directory itself are read, so this is cheap
+ * whatever the size of the archive. Zip64 archives are supported, as well as archives prefixed by
+ * arbitrary data (self-extracting jars, launch scripts): as <code>ZipFile</code> does, the length of the
+ * prefix is deduced from where the central directory actually ends, and added to the recorded offsets.
+ *
+ * @version $Revision$
+ */
+class CentralDirectory {
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int MAX_COMMENT = 0xffff;
+
+    private final long foffset;
+    private final long fsize;
+    private final long fentries;
+    private final long fprefix;
+
+    /** @param end - position of the record following the central directory
+     * @param offset - offset of the central directory, as recorded, that is relative to the start of the archive
+     */
+    private CentralDirectory(long end, long offset, long size, long entries) throws IOException {
+        fprefix = end - size - offset;
+        if(fprefix < 0 || offset < 0 || size < 0)
+            throw new IOException("invalid central directory");
+        foffset = end - size;
+        fsize = size;
+        fentries = entries;
+    }
+
+    /** position of the central directory in the file */
+    long getOffset() { return foffset; }
+    /** length of the data prepended to the archive, to be added to any recorded offset */
+    long getPrefix() { return fprefix; }
+    /** size in bytes of the central directory */
+    long getSize() { return fsize; }
+    /** number of entries declared by the central directory */
+    long getEntries() { return fentries; }
+
+    /** locate the central directory of the given zip file */
+    static CentralDirectory locate(RandomAccessFile zip) throws IOException {
+        long length = zip.length();
+        int tail = (int)Math.min(length, EOCD_SIZE + MAX_COMMENT);
+        byte[] buf = new byte[tail];
+        zip.seek(length - tail);
+        zip.readFully(buf);
+        for(int i = tail - EOCD_SIZE; i >= 0; i--) {
+            if(getInt(buf, i) != EOCD_SIG)
+                continue;
+            long eocd = length - tail + i;
+            long entries = getShort(buf, i + 10);
+            long size = getInt(buf, i + 12) & 0xffffffffL;
+            long offset = getInt(buf, i + 16) & 0xffffffffL;
+            if(offset == 0xffffffffL || size == 0xffffffffL || entries == 0xffff) {
+                CentralDirectory zip64 = locateZip64(zip, eocd);
+                if(zip64 != null) return zip64;
+            }
+            return new CentralDirectory(eocd, offset, size, entries);
+        }
+        throw new IOException("not a zip file: end of central directory not found");
+    }
+
+    private static CentralDirectory locateZip64(RandomAccessFile zip, long eocd) throws IOException {
+        if(eocd < ZIP64_LOCATOR_SIZE)
+            return null;
+        byte[] locator = new byte[ZIP64_LOCATOR_SIZE];
+        zip.seek(eocd - ZIP64_LOCATOR_SIZE);
+        zip.readFully(locator);
+        if(getInt(locator, 0) != ZIP64_LOCATOR_SIG)
+            return null;
+        byte[] record = new byte[ZIP64_EOCD_SIZE];
+        // the locator records an offset relative to the start of the archive, which is wrong for a prefixed
+        // archive: then look right before the locator, where the zip64 end record usually is
+        long end64 = getLong(locator, 8);
+        if(!readRecord(zip, end64, record)) {
+            end64 = eocd - ZIP64_LOCATOR_SIZE - ZIP64_EOCD_SIZE;
+            if(!readRecord(zip, end64, record))
+                throw new IOException("invalid zip64 end of central directory");
+        }
+        return new CentralDirectory(end64, getLong(record, 48), getLong(record, 40), getLong(record, 32));
+    }
+
+    /** read a zip64 end of central directory record at the given position, return false if there is none */
+    private static boolean readRecord(RandomAccessFile zip, long position, byte[] record) throws IOException {
+        if(position < 0 || position + record.length > zip.length())
+            return false;
+        zip.seek(position);
+        zip.readFully(record);
+        return getInt(record, 0) == ZIP64_EOCD_SIG;
+    }
+
+    /** return the MD5 of the raw central directory, which change as soon as any entry name, size, crc or time change */
+    byte[] digest(RandomAccessFile zip) throws IOException {
+        MessageDigest md5 = JarPatch.newMd5();
+        byte[] buf = new byte[64 * 1024];
+        zip.seek(foffset);
+        for(long remaining = fsize; remaining > 0; ) {
+            int n = zip.read(buf, 0, (int)Math.min(buf.length, remaining));
+            if(n == -1)
+                throw new EOFException("truncated central directory");
+            md5.update(buf, 0, n);
+            remaining -= n;
+        }
+        return md5.digest();
+    }
+
+    /** return the entries of the given names, walking the central directory once.
+     * Names that are not found are absent of the result.
+     */
+    Map<String, Entry> entries(RandomAccessFile zip, Set<String> names) throws IOException {
+        Map<String, Entry> ret = new HashMap<>(names.size() * 2);
+        zip.seek(foffset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(zip.getChannel()), 64 * 1024));
+        byte[] header = new byte[CEN_SIZE];
+        for(long read = 0; read + CEN_SIZE <= fsize && ret.size() < names.size(); ) {
+            in.readFully(header);
+            if(getInt(header, 0) != CEN_SIG)
+                throw new IOException("invalid central directory header");
+            int nameLength = getShort(header, 28);
+            int extraLength = getShort(header, 30);
+            int commentLength = getShort(header, 32);
+            byte[] rawName = new byte[nameLength];
+            in.readFully(rawName);
+            String name = new String(rawName, StandardCharsets.UTF_8);
+            read += CEN_SIZE + nameLength + extraLength + commentLength;
+            if(!names.contains(name)) {
+                in.skipBytes(extraLength + commentLength);
+                continue;
+            }
+            byte[] extra = new byte[extraLength];
+            in.readFully(extra);
+            byte[] comment = new byte[commentLength];
+            in.readFully(comment);
+            ret.put(name, new Entry(name, header.clone(), extra, comment, fprefix));
+        }
+        return ret;
+    }
+
+    /** an entry of the central directory, with what is needed to read it from its local header */
+    static class Entry {
+        private final String fname;
+        private final byte[] fheader;
+        private final byte[] fextra;
+        private final byte[] fcomment;
+        private final long fsize;
+        private final long fcompressedSize;
+        private final long foffset;
+
+        private Entry(String name, byte[] header, byte[] extra, byte[] comment, long prefix) throws IOException {
+            fname = name;
+            fheader = header;
+            fextra = extra;
+            fcomment = comment;
+            long size = getInt(header, 24) & 0xffffffffL;
+            long compressedSize = getInt(header, 20) & 0xffffffffL;
+            long offset = getInt(header, 42) & 0xffffffffL;
+            if(size == 0xffffffffL || compressedSize == 0xffffffffL || offset == 0xffffffffL) {
+                // zip64 extended information, only holding the fields that overflow, in this order
+                int pos = zip64Extra(extra);
+                int fields = (size == 0xffffffffL ? 1 : 0) + (compressedSize == 0xffffffffL ? 1 : 0) + (offset == 0xffffffffL ? 1 : 0);
+                if(pos + 8 * fields > extra.length)
+                    throw new IOException("invalid zip64 extended information for "+name);
+                if(size == 0xffffffffL) { size = getLong(extra, pos); pos += 8; }
+                if(compressedSize == 0xffffffffL) { compressedSize = getLong(extra, pos); pos += 8; }
+                if(offset == 0xffffffffL) offset = getLong(extra, pos);
+            }
+            fsize = size;
+            fcompressedSize = compressedSize;
+            foffset = prefix + offset;
+        }
+
+        /** name of the entry */
+        String getName() { return fname; }
+        /** compression method */
+        int getMethod() { return getShort(fheader, 10); }
+        /** crc of the uncompressed content */
+        long getCrc() { return getInt(fheader, 16) & 0xffffffffL; }
+        /** size of the compressed content */
+        long getCompressedSize() { return fcompressedSize; }
+        /** position in the file of the local header */
+        long getOffset() { return foffset; }
+
+        /** build a JarEntry as a JarFile would have returned it, apart from signers and attributes.
+         * The compressed size is only set for stored entries, so that the entry can be deflated again.
+         */
+        JarEntry toJarEntry() {
+            JarEntry entry = new JarEntry(fname);
+            entry.setMethod(getMethod());
+            entry.setTime(dosToJavaTime(getInt(fheader, 12) & 0xffffffffL));
+            entry.setCrc(getCrc());
+            entry.setSize(fsize);
+            if(getMethod() == ZipEntry.STORED)
+                entry.setCompressedSize(fcompressedSize);
+            if(fextra.length > 0)
+                entry.setExtra(fextra);
+            if(fcomment.length > 0)
+                entry.setComment(new String(fcomment, StandardCharsets.UTF_8));
+            return entry;
+        }
+
+        /** position of the data of the zip64 extended information in the given extra field */
+        private static int zip64Extra(byte[] extra) throws IOException {
+            for(int i = 0; i + 4 <= extra.length; i += 4 + getShort(extra, i + 2)) {
+                if(getShort(extra, i) == ZIP64_EXTRA_ID)
+                    return i + 4;
+            }
+            throw new IOException("missing zip64 extended information");
+        }
+
+        private static long dosToJavaTime(long dtime) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set((int)((dtime >> 25) & 0x7f) + 1980, (int)((dtime >> 21) & 0x0f) - 1, (int)((dtime >> 16) & 0x1f),
+                (int)((dtime >> 11) & 0x1f), (int)((dtime >> 5) & 0x3f), (int)((dtime << 1) & 0x3e));
+            return calendar.getTimeInMillis();
+        }
+    }
+
+    static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return getShort(b, off) | getShort(b, off + 2) << 16;
+    }
+
+    static long getLong(byte[] b, int off) {
+        return (getInt(b, off) & 0xffffffffL) | (long)getInt(b, off + 4) << 32;
+    }
+}
@@ -30,6 +30,10 @@
 package org.jarpatch;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.util.*;
@@ -37,26 +41,71 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 
 /**
  * maintain a view of a Jar content.
  * Read a jar file, and compute a MD5 key for each file entry of the jar file
+ * <p>
+ * The jar can also be read from a non seekable stream, in which case it is indexed in a single
+ * sequential pass over the local headers. Only the entries that may be needed later (nested archives,
+ * and entries that differ from a reference content) are kept, spooled to a temporary file.
+ * <p>
+ * A jar file is also indexed in a single sequential pass when possible, and entries are returned, and
+ * best written, in local header offset order, so that reading the jar is streaming rather than seek bound.
+ * With a memory budget, a jar file is read the same way as a stream, and the entries to write are
+ * looked up by a single walk of its central directory: it is only opened as a <code>JarFile</code>, which
+ * hold its whole central directory on the heap, if its local headers cannot be read sequentially.
  *
  * @author Norbert Barbosa
  * @version $Revision$
  */
-public class JarContent {
-    private final JarFile fjar;
-    private Map fcontents;
+public class JarContent implements Closeable {
+    private final File ffile;
+    private JarFile fjar;
+    private InputStream fstream;
+    private JarIndex fcontents;
+    private int fentryCount;
+    private File fspool;
+    private Map<String, SpooledEntry> fspooled;
+    /** location in the spool of the entries kept without looking up the reference, bounded in memory */
+    private JarIndex fspoolIndex;
+    private Map<String, CentralDirectory.Entry> flocations;
+    /** one reader by thread, so that entries can be written concurrently */
+    private final ThreadLocal<SequentialReader> freader = new ThreadLocal<>();
+    private final List<SequentialReader> freaders = Collections.synchronizedList(new ArrayList<>());
+    private long fmemoryBudget = JarIndex.UNBOUNDED;
     private static MessageDigest fmd5Digest;
     private Pattern[] fexcludes = new Pattern[] { Pattern.compile( "META-INF.*" )}; // per default exclude all META-INF resources;
     private Pattern[] fmetaInfIncludes;
     
     private static final JarEntry[] EMPTY_JARENTRIES = {};
+    /** size of the read-ahead window used when reading a jar file sequentially */
+    private static final int READ_AHEAD = 1024 * 1024;
 
     /** build a new JarContent from the given jar file */
     public JarContent(File jar) throws IOException {
-        fjar = new JarFile(jar);
+        if(!jar.isFile())
+            throw new FileNotFoundException(jar.getPath());
+        ffile = jar;
+    }
+
+    /** build a new JarContent from a jar read sequentially from the given stream.
+     * The stream is consumed by {@link #initializeContent()}, and closed by {@link #close()}.
+     */
+    public JarContent(InputStream jar) {
+        ffile = null;
+        fstream = jar;
+    }
+
+    /** build a new JarContent from a jar read sequentially from the given channel */
+    public JarContent(ReadableByteChannel jar) {
+        this(Channels.newInputStream(jar));
     }
     
     /** set the exclude pattern */
@@ -69,24 +118,55 @@ public class JarContent {
         fmetaInfIncludes = metaInfIncludes;
     }
 
+    /** set the approximate number of bytes the entry index may use on the heap before being
+     * spilled to disk as sorted runs. Nested archives are indexed with the same budget, and so is the
+     * location of the spooled entries of a jar stream, when they cannot be selected in memory.
+     */
+    public void setMemoryBudget(long bytes) {
+        fmemoryBudget = bytes;
+    }
+
     /** initialize the JarContent from the jar */
     public void initializeContent() throws IOException {
-        fcontents = new HashMap(1000);
-        for(Enumeration e=fjar.entries(); e.hasMoreElements(); ){
-            JarEntry entry = (JarEntry)e.nextElement();
-            if(fexcludes != null && fexcludes.length != 0){
-                boolean skip=false;
-                for(int i=0;i<fexcludes.length;i++)
-                    if(fexcludes[i].matcher(entry.getName()).matches()){
-                        skip = fmetaInfIncludes == null ? true : Stream.of( fmetaInfIncludes ).noneMatch( metaInfInclude -> metaInfInclude.matcher( entry.getName() ).matches() );
-                        break;
-                    }
-                if(skip)
-                    continue;
+        initializeContent(null);
+    }
+
+    /** initialize the JarContent from the jar, knowing it will be compared to the given reference.
+     * <p>
+     * For a jar read from a stream, only the entries whose digest differ from the reference, and nested
+     * archives, are kept for {@link #writeEntry(JarEntry, OutputStream)}. Without reference, or with a
+     * reference which index has been spilled to disk and cannot be looked up, all entries are spooled, and
+     * located afterward through an index bounded by the memory budget rather than held on the heap.
+     * For a jar file, the reference is ignored.
+     */
+    public void initializeContent(JarContent reference) throws IOException {
+        if(fcontents != null) fcontents.close();
+        fcontents = new JarIndex(fmemoryBudget);
+        if(ffile == null) {
+            if(fstream == null)
+                throw new IOException("jar stream already consumed");
+            try {
+                initializeStreamContent(fstream, reference, reference == null || reference.fcontents.isSpilled());
+            } finally {
+                fstream = null;
             }
+            return;
+        }
+        if(fmemoryBudget == JarIndex.UNBOUNDED ? initializeSequentialContent() : initializeBoundedContent())
+            return;
+        // the local headers do not match the central directory, read each entry from it
+        fcontents.close();
+        fcontents = new JarIndex(fmemoryBudget);
+        if(fspool != null) fspool.delete();
+        fspool = null;
+        fspooled = null;
+        for(Enumeration e=jar().entries(); e.hasMoreElements(); ){
+            JarEntry entry = (JarEntry)e.nextElement();
+            if(isExcluded(entry.getName()))
+                continue;
             InputStream in = null;
             try {
-                in = fjar.getInputStream(entry);
+                in = jar().getInputStream(entry);
                 byte[] md5 = computeMd5(in);
                 fcontents.put(entry.getName(), md5);
             }finally{
@@ -94,18 +174,168 @@ public class JarContent {
             }
         }
     }
+
+    /** single sequential pass over the local headers of the jar file, which let the OS read ahead.
+     * @return false if the local headers do not describe exactly the entries of the central directory
+     * (prefixed, or updated in place archives), in which case the content is incomplete
+     */
+    private boolean initializeSequentialContent() throws IOException {
+        JarFile jar = jar();
+        int seen = 0;
+        try(ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(ffile), READ_AHEAD))) {
+            ZipEntry zentry;
+            while((zentry = zin.getNextEntry()) != null) {
+                String name = zentry.getName();
+                if(jar.getEntry(name) == null)
+                    return false;
+                seen++;
+                if(isExcluded(name))
+                    continue;
+                fcontents.put(name, computeMd5(zin));
+            }
+        } catch(ZipException e) {
+            return false;
+        }
+        return seen == jar.size();
+    }
+
+    /** single sequential pass over the local headers of the jar file, as for a stream, without opening it
+     * as a JarFile so that the heap does not grow with the number of entries. Nested archives are spooled.
+     * @return false if the local headers do not describe the entries of the central directory
+     */
+    private boolean initializeBoundedContent() throws IOException {
+        long entries;
+        try(RandomAccessFile raf = new RandomAccessFile(ffile, "r")) {
+            entries = CentralDirectory.locate(raf).getEntries();
+        }
+        try {
+            initializeStreamContent(new FileInputStream(ffile), null, false);
+        } catch(ZipException e) {
+            return false;
+        }
+        return fentryCount == entries;
+    }
+
+    /** single sequential pass over the given jar stream, which is closed.
+     * Nested archives are kept, as well as all entries if keepAll, or else the entries that differ from reference if any.
+     */
+    private void initializeStreamContent(InputStream jar, JarContent reference, boolean keepAll) throws IOException {
+        fspool = File.createTempFile("jarpatch_spool", ".tmp");
+        fspool.deleteOnExit();
+        fspooled = new HashMap<>();
+        if(fspoolIndex != null) fspoolIndex.close();
+        fspoolIndex = keepAll ? new JarIndex(fmemoryBudget) : null;
+        fentryCount = 0;
+        try(ZipInputStream zin = new ZipInputStream(new BufferedInputStream(jar, 64 * 1024));
+            FileOutputStream spool = new FileOutputStream(fspool)) {
+            FileChannel channel = spool.getChannel();
+            OutputStream out = new BufferedOutputStream(spool, 64 * 1024);
+            long offset = 0;
+            ZipEntry zentry;
+            while((zentry = zin.getNextEntry()) != null) {
+                fentryCount++;
+                String name = zentry.getName();
+                if(isExcluded(name))
+                    continue;
+                // spool while digesting, the entry is dropped afterward if it is not needed
+                boolean keep = keepAll || isArchive(name) || reference != null;
+                CountingOutputStream counter = keep ? new CountingOutputStream(out) : null;
+                byte[] md5 = computeMd5(zin, counter);
+                fcontents.put(name, md5);
+                if(keep && !keepAll && !isArchive(name) && Arrays.equals(md5, reference.fcontents.get(name)))
+                    keep = false;
+                if(keep && fspoolIndex != null && !isArchive(name)) {
+                    // the entry itself is spooled after its content, only its location is indexed
+                    byte[] trailer = SpooledEntry.trailer(new JarEntry(zentry));
+                    out.write(trailer);
+                    fspoolIndex.put(name, SpooledEntry.location(offset, counter.count));
+                    offset += counter.count + trailer.length;
+                } else if(keep) {
+                    // sizes and crc of the entry are only known once its data have been read
+                    fspooled.put(name, new SpooledEntry(new JarEntry(zentry), offset, counter.count));
+                    offset += counter.count;
+                } else if(counter != null) {
+                    out.flush();
+                    channel.truncate(offset);
+                    channel.position(offset);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /** open the jar file on first use, if this content is read from a file */
+    private synchronized JarFile jar() throws IOException {
+        if(fjar == null && ffile != null)
+            fjar = new JarFile(ffile);
+        return fjar;
+    }
+
+    /** return true if the given entry is excluded from the content */
+    private boolean isExcluded(String name) {
+        if(fexcludes != null && fexcludes.length != 0){
+            for(int i=0;i<fexcludes.length;i++)
+                if(fexcludes[i].matcher(name).matches()){
+                    return fmetaInfIncludes == null ? true : Stream.of( fmetaInfIncludes ).noneMatch( metaInfInclude -> metaInfInclude.matcher( name ).matches() );
+                }
+        }
+        return false;
+    }
+
     /** compute the md5 hash for the given jar file */
     private byte[] computeMd5(InputStream in) throws IOException{
+        return computeMd5(in, null);
+    }
+
+    /** compute the md5 hash for the given jar file, copying what is read to copy if not null */
+    private byte[] computeMd5(InputStream in, OutputStream copy) throws IOException{
+        MessageDigest md5Digest;
         try{
             if(fmd5Digest == null)
                 fmd5Digest = MessageDigest.getInstance("MD5");
-            in = new DigestInputStream(in, fmd5Digest);
-            byte[] buf = new byte[2048];
-            while(in.read(buf) != -1){/*nothing*/}
-            return fmd5Digest.digest();
+            md5Digest = fmd5Digest;
         }catch(Exception e){
             throw new IOException(e.getMessage());
         }
+        in = new DigestInputStream(in, md5Digest);
+        byte[] buf = new byte[8 * 1024];
+        int len;
+        while((len = in.read(buf)) != -1){
+            if(copy != null) copy.write(buf, 0, len);
+        }
+        return md5Digest.digest();
+    }
+
+    /** open the content of the given entry */
+    private InputStream getInputStream(String entry) throws IOException {
+        SpooledEntry spooled = fspooled == null ? null : fspooled.get(entry);
+        if(spooled == null) {
+            // every nested archive of a jar read sequentially has been spooled
+            JarFile jar = fspooled != null && isArchive(entry) ? null : jar();
+            JarEntry jentry = jar == null ? null : jar.getJarEntry(entry);
+            return jentry == null ? null : jar.getInputStream(jentry);
+        }
+        RandomAccessFile raf = new RandomAccessFile(fspool, "r");
+        raf.seek(spooled.foffset);
+        return new BufferedInputStream(new FilterInputStream(Channels.newInputStream(raf.getChannel())) {
+            private long fremaining = spooled.flength;
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(fremaining <= 0) return -1;
+                int n = super.read(b, off, (int)Math.min(len, fremaining));
+                if(n > 0) fremaining -= n;
+                return n;
+            }
+            public long skip(long n) throws IOException {
+                return super.skip(Math.min(n, fremaining));
+            }
+            public void close() throws IOException {
+                raf.close();
+            }
+        }, 8 * 1024);
     }
 
     /**
@@ -122,9 +352,8 @@ public class JarContent {
         InputStream is = null;
         OutputStream os = null;
         try {
-            JarEntry jentry = fjar.getJarEntry(entry);
-            if (jentry != null) {
-                is = fjar.getInputStream(jentry);
+            is = getInputStream(entry);
+            if (is != null) {
                 String[] array = entry.split("/");
                 if (array != null && array.length > 0) {
                     File tmpFile = File.createTempFile("jarpatch_" +
@@ -163,114 +392,408 @@ public class JarContent {
      * @return the number of entries
      */
     public int getNumberOfJarEntries() {
-        return fjar.size();
+        return fjar != null ? fjar.size() : fentryCount;
     }
     
     /** return all the JarEntry that have been modified from the old jar,
      * or EMPTY_JARENTRY.
+     * <p>
+     * Both indexes are walked together in name order, so no random lookup into the old index is needed.
      */
     public JarEntry[] computeNewerEntry(JarContent oldJar) throws IOException {
-        List ret = null;
-        for(Iterator i = fcontents.entrySet().iterator(); i.hasNext(); ){
-            boolean foundDifference = false;
-            Map.Entry e = (Map.Entry)i.next();
-            String entry = (String)e.getKey();
-
-            if (entry.endsWith(".jar") || entry.endsWith(".war") || entry.endsWith(".zip")) {
-                File newJarFile = extractJarEntry(entry);
-                File oldJarFile = oldJar.extractJarEntry(entry);
-                if (newJarFile != null && oldJarFile != null) {
-                    JarContent nj = new JarContent(newJarFile);
-                    JarContent oj = new JarContent(oldJarFile);
-                    if (fexcludes != null) {
-                        nj.setExcludePattern(fexcludes);
-                        oj.setExcludePattern(fexcludes);
-                    }
-                    if (fmetaInfIncludes != null) {
-                        nj.setMetaInfIncludePattern(fmetaInfIncludes);
-                        oj.setMetaInfIncludePattern(fmetaInfIncludes);
-                    }
-                    nj.initializeContent();
-                    oj.initializeContent();
-                    int newsize = nj.getNumberOfJarEntries();
-                    int oldsize = oj.getNumberOfJarEntries();
+        List<String> ret = null;
+        try(JarIndex.Cursor news = fcontents.cursor(); JarIndex.Cursor olds = oldJar.fcontents.cursor()) {
+            boolean hasOld = olds.next();
+            while(news.next()) {
+                boolean foundDifference = false;
+                String entry = news.name();
+                while(hasOld && olds.name().compareTo(entry) < 0)
+                    hasOld = olds.next();
 
-                    if (newsize != oldsize) {
-                        foundDifference = true;
-                    } else {
-                        JarEntry[] diff = nj.computeNewerEntry(oj);
-                        if (diff != null && diff.length > 0) {
+                if (isArchive(entry)) {
+                    File newJarFile = extractJarEntry(entry);
+                    File oldJarFile = oldJar.extractJarEntry(entry);
+                    try {
+                        if (newJarFile != null && oldJarFile != null) {
+                            foundDifference = isNestedArchiveModified(newJarFile, oldJarFile);
+                        } else if (oldJarFile == null && newJarFile != null) {
                             foundDifference = true;
                         }
+                    } finally {
+                        if (newJarFile != null) newJarFile.delete();
+                        if (oldJarFile != null) oldJarFile.delete();
+                    }
+                } else {
+                    byte[] md5 = news.digest();
+                    byte[] oldmd5 = hasOld && olds.name().equals(entry) ? olds.digest() : null;
+                    if(oldmd5 == null || !Arrays.equals(md5, oldmd5)){
+                        foundDifference = true;
                     }
-                } else if (oldJarFile == null && newJarFile != null) {
-                    foundDifference = true;
                 }
-            } else {
-                byte[] md5 = (byte[])e.getValue();
-                byte[] oldmd5 = (byte[])oldJar.fcontents.get(entry);
-                if(oldmd5 == null || !Arrays.equals(md5, oldmd5)){
-                    foundDifference = true;
+                if (foundDifference) {
+                    if(ret == null) ret = new ArrayList<>();
+                    ret.add(entry);
                 }
             }
-            if (foundDifference) {
-                if(ret == null) ret = new ArrayList();
-                ret.add(fjar.getJarEntry(entry));
-            }
         }
         if(ret == null) return EMPTY_JARENTRIES;
-        JarEntry[] aret = new JarEntry[ret.size()];
-        ret.toArray(aret);
-        return aret;
+        return getSortedEntries(ret);
+    }
+
+    /** return the JarEntry of the given names, in the order they are stored, which is the order they can be
+     * read without seeking back. Entries of unknown offset come last, by name.
+     * <p>
+     * The entries of a jar file are looked up by a single walk of its central directory, which also give
+     * where to read them from.
+     */
+    private JarEntry[] getSortedEntries(List<String> names) throws IOException {
+        JarEntry[] entries = new JarEntry[names.size()];
+        Map<String, Long> offsets = new HashMap<>(names.size() * 2);
+        if(ffile != null) {
+            try(RandomAccessFile raf = new RandomAccessFile(ffile, "r")) {
+                flocations = CentralDirectory.locate(raf).entries(raf, new HashSet<>(names));
+            }
+            for(int i = 0; i < entries.length; i++) {
+                String name = names.get(i);
+                CentralDirectory.Entry location = flocations.get(name);
+                if(location != null)
+                    offsets.put(name, location.getOffset());
+                entries[i] = fjar == null && location != null ? location.toJarEntry() : jar().getJarEntry(name);
+            }
+        } else {
+            resolveSpooled(names);
+            for(int i = 0; i < entries.length; i++) {
+                SpooledEntry spooled = fspooled.get(names.get(i));
+                if(spooled == null)
+                    throw new IllegalStateException("entry "+names.get(i)+" of the jar stream has not been kept");
+                offsets.put(names.get(i), spooled.foffset);
+                entries[i] = spooled.fentry;
+            }
+        }
+        Arrays.sort(entries, (a, b) -> {
+            Long oa = offsets.get(a.getName()), ob = offsets.get(b.getName());
+            if(oa != null && ob != null) return oa.compareTo(ob);
+            if(oa != null || ob != null) return oa != null ? -1 : 1;
+            return a.getName().compareTo(b.getName());
+        });
+        return entries;
     }
 
 
+    /** look up the given entries in the spool index, walking it once in name order */
+    private void resolveSpooled(List<String> names) throws IOException {
+        if(fspoolIndex == null)
+            return;
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        try(JarIndex.Cursor cursor = fspoolIndex.cursor(); RandomAccessFile spool = new RandomAccessFile(fspool, "r")) {
+            boolean hasNext = cursor.next();
+            for(String name : sorted) {
+                while(hasNext && cursor.name().compareTo(name) < 0)
+                    hasNext = cursor.next();
+                if(hasNext && cursor.name().equals(name) && !fspooled.containsKey(name))
+                    fspooled.put(name, SpooledEntry.read(spool, name, cursor.digest()));
+            }
+        }
+    }
+
+    /** compare two extracted nested archives, with the same patterns and memory budget as this one */
+    private boolean isNestedArchiveModified(File newJarFile, File oldJarFile) throws IOException {
+        try(JarContent nj = new JarContent(newJarFile); JarContent oj = new JarContent(oldJarFile)) {
+            if (fexcludes != null) {
+                nj.setExcludePattern(fexcludes);
+                oj.setExcludePattern(fexcludes);
+            }
+            if (fmetaInfIncludes != null) {
+                nj.setMetaInfIncludePattern(fmetaInfIncludes);
+                oj.setMetaInfIncludePattern(fmetaInfIncludes);
+            }
+            nj.setMemoryBudget(fmemoryBudget);
+            oj.setMemoryBudget(fmemoryBudget);
+            nj.initializeContent();
+            oj.initializeContent();
+            int newsize = nj.getNumberOfJarEntries();
+            int oldsize = oj.getNumberOfJarEntries();
+
+            if (newsize != oldsize)
+                return true;
+            JarEntry[] diff = nj.computeNewerEntry(oj);
+            return diff != null && diff.length > 0;
+        }
+    }
+
+    private static boolean isArchive(String entry) {
+        return entry.endsWith(".jar") || entry.endsWith(".war") || entry.endsWith(".zip");
+    }
+
     /*
      * Return a List of entries that were deleted as of the newJar.  That is, the List computed and returned will contain those entries present in the oldJar but not in newJar.  The List will be empty if there are no deleted entries as of the newJar.
      * @return the number of entries deleted from oldJar to newJar
      *
      */
-    public List computeDeletedEntry(JarContent newJar) throws IOException {
-        ArrayList deldiff = new ArrayList();
+    public List<String> computeDeletedEntry(JarContent newJar) throws IOException {
+        ArrayList<String> deldiff = new ArrayList<>();
 
 	    // note that the loop is iterating over oldJar and making comparisons to newJar; this is inverse of function "computeNewerEntry( )"
-        for(Iterator i = fcontents.entrySet().iterator(); i.hasNext(); ){
-            boolean foundDifference = false;
-            Map.Entry e = (Map.Entry)i.next();
-            String entry = (String)e.getKey();
-
-            if (entry.endsWith(".jar") || entry.endsWith(".war") || entry.endsWith(".zip")) {
-		    // entry is a JAR, WAR, or ZIP
-                File oldJarFile = extractJarEntry(entry);
-                File newJarFile = newJar.extractJarEntry(entry);
-                if (newJarFile == null && oldJarFile != null) {
-                    // file exists in oldJar but not in newJar
-                    // JAR, WAR, and ZIP files are treated atomically; that is, only considers the archive file itself as a single unit and will not identify composing content files as deleted or modified
-                    foundDifference = true;
-                }
-            } else {
-		        // entry is not a JAR, WAR, or ZIP
-                if(!newJar.fcontents.containsKey(entry)) {
+        try(JarIndex.Cursor olds = fcontents.cursor(); JarIndex.Cursor news = newJar.fcontents.cursor()) {
+            boolean hasNew = news.next();
+            while(olds.next()) {
+                boolean foundDifference = false;
+                String entry = olds.name();
+                while(hasNew && news.name().compareTo(entry) < 0)
+                    hasNew = news.next();
+
+                // both jars share the same patterns, so an entry of oldJar missing from the newJar index is missing from newJar.
+                // JAR, WAR, and ZIP files are treated atomically; that is, only considers the archive file itself as a single unit and will not identify composing content files as deleted or modified
+                if(!(hasNew && news.name().equals(entry))) {
 		            // file exists in oldJar but not in newJar
                     foundDifference = true;
                 }
-            }
-            if (foundDifference) {
-		        // found a file that exists in newJar but no in oldJar; so add to return List
-                deldiff.add(entry);
+                if (foundDifference) {
+		            // found a file that exists in newJar but no in oldJar; so add to return List
+                    deldiff.add(entry);
+                }
             }
         }
         return deldiff;
     }
 
 
+    /** write the uncompressed content of the given entry. Can be called concurrently by different threads. */
     public void writeEntry(JarEntry jarEntry, OutputStream out) throws IOException {
+        // entries returned by computeNewerEntry are read sequentially, as long as each thread write them in order
+        CentralDirectory.Entry location = flocations == null ? null : flocations.get(jarEntry.getName());
+        if(location != null && SequentialReader.canRead(location)) {
+            long offset = location.getOffset();
+            SequentialReader reader = freader.get();
+            if(reader == null || offset < reader.fposition) {
+                if(reader != null) {
+                    freaders.remove(reader);
+                    reader.close();
+                }
+                reader = new SequentialReader(ffile, offset);
+                freader.set(reader);
+                freaders.add(reader);
+            }
+            if(reader.copy(location, out))
+                return;
+            // the central directory does not match the file content: read the entry as the jar does
+        }
         byte[] buf = new byte[2048];
         int len;
-        // TODO: should I close the stream????
-        InputStream in = fjar.getInputStream(jarEntry);
-        while((len = in.read(buf)) != -1){
-            out.write(buf, 0, len);
+        InputStream in = getInputStream(jarEntry.getName());
+        if(in == null)
+            throw new IOException("entry "+jarEntry.getName()+" is not available");
+        try {
+            while((len = in.read(buf)) != -1){
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** close the underlying jar file and release the index, including any run spilled to disk */
+    public void close() throws IOException {
+        if(fcontents != null) fcontents.close();
+        if(fspoolIndex != null) fspoolIndex.close();
+        if(fspool != null) fspool.delete();
+        synchronized(freaders) {
+            for(SequentialReader reader : freaders)
+                reader.close();
+            freaders.clear();
+        }
+        if(fstream != null) fstream.close();
+        if(fjar != null) fjar.close();
+    }
+
+    /** forward only reader of a jar file entries, through a large read-ahead window.
+     * Entries close to each other are read from the same window, far away ones are reached by a forward seek.
+     */
+    private static class SequentialReader implements Closeable {
+        private static final int LOC_SIG = 0x04034b50;
+        private static final int LOC_SIZE = 30;
+
+        private final InputStream fin;
+        private long fposition;
+
+        SequentialReader(File jar, long offset) throws IOException {
+            FileInputStream fis = new FileInputStream(jar);
+            fis.getChannel().position(offset);
+            fin = new BufferedInputStream(fis, READ_AHEAD);
+            fposition = offset;
+        }
+
+        /** only stored and deflated entries can be read without a JarFile */
+        static boolean canRead(CentralDirectory.Entry entry) {
+            return entry.getMethod() == ZipEntry.STORED || entry.getMethod() == ZipEntry.DEFLATED;
+        }
+
+        /** copy the uncompressed content of the given entry from its local header, and check its crc.
+         * Return false, without writing anything, if there is no local header where the entry is located.
+         */
+        boolean copy(CentralDirectory.Entry entry, OutputStream out) throws IOException {
+            skip(entry.getOffset() - fposition);
+            byte[] header = new byte[LOC_SIZE];
+            try {
+                readFully(header, LOC_SIZE);
+            } catch(EOFException e) {
+                return false;
+            }
+            if(CentralDirectory.getInt(header, 0) != LOC_SIG)
+                return false;
+            skip(CentralDirectory.getShort(header, 26) + CentralDirectory.getShort(header, 28));
+
+            CRC32 crc = new CRC32();
+            byte[] buf = new byte[8 * 1024];
+            long remaining = entry.getCompressedSize();
+            if(entry.getMethod() == ZipEntry.STORED) {
+                while(remaining > 0) {
+                    int n = (int)Math.min(buf.length, remaining);
+                    readFully(buf, n);
+                    crc.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    remaining -= n;
+                }
+            } else {
+                Inflater inflater = new Inflater(true);
+                byte[] inflated = new byte[8 * 1024];
+                boolean dummy = false;
+                try {
+                    while(!inflater.finished()) {
+                        if(inflater.needsInput()) {
+                            if(remaining > 0) {
+                                int n = (int)Math.min(buf.length, remaining);
+                                readFully(buf, n);
+                                inflater.setInput(buf, 0, n);
+                                remaining -= n;
+                            } else if(!dummy) {
+                                // a nowrap inflater may need an extra byte past the end of the data
+                                inflater.setInput(new byte[1]);
+                                dummy = true;
+                            } else {
+                                throw new ZipException("truncated entry "+entry.getName());
+                            }
+                        }
+                        int n = inflater.inflate(inflated);
+                        if(n == 0 && inflater.needsDictionary())
+                            throw new ZipException("invalid entry "+entry.getName());
+                        crc.update(inflated, 0, n);
+                        out.write(inflated, 0, n);
+                    }
+                } catch(DataFormatException e) {
+                    throw new ZipException("invalid entry "+entry.getName()+": "+e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+                skip(remaining);
+            }
+            if(crc.getValue() != entry.getCrc())
+                throw new ZipException("invalid crc for "+entry.getName());
+            return true;
+        }
+
+        private void readFully(byte[] buf, int len) throws IOException {
+            for(int off = 0; off < len; ) {
+                int n = fin.read(buf, off, len - off);
+                if(n == -1)
+                    throw new EOFException("unexpected end of jar");
+                off += n;
+                fposition += n;
+            }
+        }
+
+        /** skip forward, inside the read-ahead window if possible, by seeking otherwise */
+        private void skip(long len) throws IOException {
+            while(len > 0) {
+                long n = fin.skip(len);
+                if(n <= 0)
+                    throw new EOFException("unexpected end of jar");
+                len -= n;
+                fposition += n;
+            }
+        }
+
+        public void close() throws IOException {
+            fin.close();
+        }
+    }
+
+    /** location of an entry kept in the spool file */
+    private static class SpooledEntry {
+        final JarEntry fentry;
+        final long foffset;
+        final long flength;
+
+        SpooledEntry(JarEntry entry, long offset, long length) {
+            fentry = entry;
+            foffset = offset;
+            flength = length;
+        }
+
+        /** location of a spooled content, as stored in a JarIndex */
+        static byte[] location(long offset, long length) {
+            return ByteBuffer.allocate(16).putLong(offset).putLong(length).array();
+        }
+
+        /** the fields of an entry read from a stream, spooled after its content */
+        static byte[] trailer(JarEntry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(entry.getTime());
+            out.writeInt(entry.getMethod());
+            out.writeLong(entry.getCrc());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getCompressedSize());
+            byte[] extra = entry.getExtra();
+            out.writeInt(extra == null ? -1 : extra.length);
+            if(extra != null) out.write(extra);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        /** read back an entry spooled with its trailer at the given location */
+        static SpooledEntry read(RandomAccessFile spool, String name, byte[] location) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(location);
+            long offset = buf.getLong();
+            long length = buf.getLong();
+            spool.seek(offset + length);
+            JarEntry entry = new JarEntry(name);
+            long time = spool.readLong();
+            int method = spool.readInt();
+            long crc = spool.readLong();
+            long size = spool.readLong();
+            long compressedSize = spool.readLong();
+            int extraLength = spool.readInt();
+            if(time != -1) entry.setTime(time);
+            if(method != -1) entry.setMethod(method);
+            if(crc != -1) entry.setCrc(crc);
+            if(size != -1) entry.setSize(size);
+            // as for an entry read from a stream, the compressed size is only kept when it cannot change
+            if(method == ZipEntry.STORED && compressedSize != -1) entry.setCompressedSize(compressedSize);
+            if(extraLength >= 0) {
+                byte[] extra = new byte[extraLength];
+                spool.readFully(extra);
+                entry.setExtra(extra);
+            }
+            return new SpooledEntry(entry, offset, length);
+        }
+    }
+
+    /** count the bytes written through it */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
         }
     }
 }
@@ -0,0 +1,244 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * a sorted index of entry name to digest, bounded in memory.
+ * <p>
+ * Entries are buffered in memory until the configured budget is reached, then the buffer is
+ * written to disk as a sorted run. Reading the index back is a k-way merge of all runs and
+ * the remaining buffer, so two indexes can be diffed by walking both cursors in name order
+ * without holding either of them on the heap.
+ *
+ * @version $Revision$
+ */
+class JarIndex implements Closeable {
+    /** memory budget meaning "never spill" */
+    static final long UNBOUNDED = Long.MAX_VALUE;
+
+    /** approximate heap cost of one buffered entry, in addition to its name and digest */
+    private static final int ENTRY_OVERHEAD = 96;
+    /** runs are merged together once there are more than this number of them */
+    private static final int MAX_RUNS = 64;
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+    private final long fbudget;
+    private TreeMap<String, byte[]> fbuffer = new TreeMap<>();
+    private long fbufferSize;
+    private final List<File> fruns = new ArrayList<>();
+
+    /** build a new index which spill to disk as soon as its buffer exceed budget bytes */
+    JarIndex(long budget) {
+        fbudget = budget;
+    }
+
+    /** add or replace the digest of the given entry */
+    void put(String name, byte[] digest) throws IOException {
+        if(fbuffer.put(name, digest) == null)
+            fbufferSize += 2L * name.length() + digest.length + ENTRY_OVERHEAD;
+        if(fbufferSize > fbudget)
+            spill();
+    }
+
+    /** return true if at least one sorted run have been written to disk */
+    boolean isSpilled() {
+        return !fruns.isEmpty();
+    }
+
+    /** return the digest of the given entry, only available while the index is not spilled */
+    byte[] get(String name) {
+        if(isSpilled())
+            throw new IllegalStateException("index spilled to disk, use a cursor");
+        return fbuffer.get(name);
+    }
+
+    /** open a cursor that walk all entries of this index in name order */
+    Cursor cursor() throws IOException {
+        List<Cursor> sources = new ArrayList<>(fruns.size() + 1);
+        try {
+            for(File run : fruns)
+                sources.add(new RunCursor(run));
+        } catch(IOException e) {
+            for(Cursor c : sources) c.close();
+            throw e;
+        }
+        sources.add(new BufferCursor(fbuffer));
+        return sources.size() == 1 ? sources.get(0) : new MergeCursor(sources);
+    }
+
+    /** release the memory buffer and delete all runs */
+    public void close() {
+        fbuffer = new TreeMap<>();
+        fbufferSize = 0;
+        for(File run : fruns)
+            run.delete();
+        fruns.clear();
+    }
+
+    /** write the memory buffer to a new sorted run */
+    private void spill() throws IOException {
+        if(fruns.size() >= MAX_RUNS)
+            compactRuns();
+        fruns.add(writeRun(new BufferCursor(fbuffer)));
+        fbuffer = new TreeMap<>();
+        fbufferSize = 0;
+    }
+
+    /** merge all existing runs into a single one, to bound the number of open files on read */
+    private void compactRuns() throws IOException {
+        List<Cursor> sources = new ArrayList<>(fruns.size());
+        File merged;
+        try {
+            for(File run : fruns)
+                sources.add(new RunCursor(run));
+            merged = writeRun(new MergeCursor(sources));
+        } finally {
+            for(Cursor c : sources) c.close();
+        }
+        for(File run : fruns)
+            run.delete();
+        fruns.clear();
+        fruns.add(merged);
+    }
+
+    private static File writeRun(Cursor cursor) throws IOException {
+        File run = File.createTempFile("jarpatch_index", ".run");
+        run.deleteOnExit();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE))) {
+            while(cursor.next()) {
+                out.writeUTF(cursor.name());
+                out.writeByte(cursor.digest().length);
+                out.write(cursor.digest());
+            }
+        } catch(IOException e) {
+            run.delete();
+            throw e;
+        }
+        return run;
+    }
+
+    /** a forward only iterator over (name, digest) pairs, in name order */
+    static abstract class Cursor implements Closeable {
+        /** move to the next entry, return false if there is no more entry */
+        abstract boolean next() throws IOException;
+        /** the name of the current entry */
+        abstract String name();
+        /** the digest of the current entry */
+        abstract byte[] digest();
+        public void close() throws IOException {}
+    }
+
+    private static class BufferCursor extends Cursor {
+        private final Iterator<Map.Entry<String, byte[]>> fit;
+        private Map.Entry<String, byte[]> fcurrent;
+
+        BufferCursor(TreeMap<String, byte[]> buffer) {
+            fit = buffer.entrySet().iterator();
+        }
+        boolean next() {
+            fcurrent = fit.hasNext() ? fit.next() : null;
+            return fcurrent != null;
+        }
+        String name() { return fcurrent.getKey(); }
+        byte[] digest() { return fcurrent.getValue(); }
+    }
+
+    private static class RunCursor extends Cursor {
+        private final DataInputStream fin;
+        private String fname;
+        private byte[] fdigest;
+
+        RunCursor(File run) throws IOException {
+            fin = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+        }
+        boolean next() throws IOException {
+            try {
+                fname = fin.readUTF();
+            } catch(EOFException e) {
+                fname = null;
+                return false;
+            }
+            fdigest = new byte[fin.readUnsignedByte()];
+            fin.readFully(fdigest);
+            return true;
+        }
+        String name() { return fname; }
+        byte[] digest() { return fdigest; }
+        public void close() throws IOException { fin.close(); }
+    }
+
+    /** k-way merge of sorted cursors; on duplicated names, the latest source win */
+    private static class MergeCursor extends Cursor {
+        private final List<Cursor> fsources;
+        private final PriorityQueue<Integer> fheap;
+        private String fname;
+        private byte[] fdigest;
+
+        MergeCursor(List<Cursor> sources) throws IOException {
+            fsources = sources;
+            fheap = new PriorityQueue<>(sources.size(), (a, b) -> {
+                int cmp = sources.get(a).name().compareTo(sources.get(b).name());
+                return cmp != 0 ? cmp : Integer.compare(b, a);
+            });
+            for(int i = 0; i < sources.size(); i++)
+                if(sources.get(i).next())
+                    fheap.add(i);
+        }
+        boolean next() throws IOException {
+            Integer top = fheap.poll();
+            if(top == null) {
+                fname = null;
+                return false;
+            }
+            Cursor c = fsources.get(top);
+            fname = c.name();
+            fdigest = c.digest();
+            if(c.next()) fheap.add(top);
+            // drop older duplicates of the same name
+            while(!fheap.isEmpty() && fsources.get(fheap.peek()).name().equals(fname)) {
+                int dup = fheap.poll();
+                if(fsources.get(dup).next()) fheap.add(dup);
+            }
+            return true;
+        }
+        String name() { return fname; }
+        byte[] digest() { return fdigest; }
+        public void close() throws IOException {
+            IOException first = null;
+            for(Cursor c : fsources) {
+                try { c.close(); } catch(IOException e) { if(first == null) first = e; }
+            }
+            if(first != null) throw first;
+        }
+    }
+}
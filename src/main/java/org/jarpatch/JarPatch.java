@@ -30,6 +30,13 @@
 package org.jarpatch;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.jar.JarEntry;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -39,6 +46,10 @@ import java.util.StringTokenizer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * build a patch zip that contains the difference between a newJar from an oldJar.
@@ -51,6 +62,47 @@ import java.util.List;
  */
 public class JarPatch {
     static public final String DELLOG_NAME = "jarpatch_deleted.log";
+    static public final String DIGESTS_NAME = "jarpatch_digests.log";
+
+    private long fmemoryBudget = JarIndex.UNBOUNDED;
+    private boolean fwriteDigests = false;
+    private long fvolumeSize = 0;
+
+    /** bound the heap used to index each jar to approximately the given number of bytes.
+     * Beyond it the indexes are spilled to temporary files as sorted runs, and the difference is
+     * computed by merging both sorted streams. Jar files are then read sequentially rather than opened
+     * as <code>JarFile</code>, so memory stays flat whatever the number of entries of the jars, apart from
+     * the entries of the patch itself. A jar whose local headers cannot be read sequentially (prefixed
+     * archive, stored entries with a data descriptor) is still opened as a <code>JarFile</code>, which hold
+     * its whole central directory on the heap. A new jar read from a stream is spooled to disk entirely
+     * once the index of the old jar has been spilled, since it can then no more be looked up entry by entry.
+     * Default is unbounded.
+     */
+    public void setMemoryBudget(long bytes) {
+        if(bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive: "+bytes);
+        fmemoryBudget = bytes;
+    }
+
+    /** if true, add a file <code>jarpatch_digests.log</code> on the zip patch, that contains the MD5 of each
+     * patch entry (one <code>md5 name</code> line by entry), so that an applied patch can be verified.
+     * Only used for zip patches.
+     */
+    public void setWriteDigests(boolean writeDigests) {
+        fwriteDigests = writeDigests;
+    }
+
+    /** split zip patches in volumes of approximately the given number of bytes (a single entry bigger than it
+     * get its own volume). The patch file is then a {@link VolumeIndex}, and the volumes are written, concurrently,
+     * next to it as <code>&lt;index name without extension&gt;.001.zip</code>, <code>.002.zip</code>, ...
+     * Each volume is a standalone patch zip, holding entries stored next to each other in the new jar; the deleted
+     * entries are listed by the index. 0, the default, write a single zip. Not used for manifests.
+     */
+    public void setVolumeSize(long bytes) {
+        if(bytes < 0)
+            throw new IllegalArgumentException("volume size must be positive: "+bytes);
+        fvolumeSize = bytes;
+    }
 
     /** build the resulting patch.
      * 
@@ -65,8 +117,58 @@ public class JarPatch {
      * @throws IOException - if IO error occur
      */      
     public boolean buildPatch(File newJar, File oldJar, Pattern[] excludes, Pattern[] metaInfIncludes, File zipPatchFile, boolean logDeletedFiles) throws IOException {
-        JarContent fnew = new JarContent(newJar);
-        JarContent fold = new JarContent(oldJar);
+        try(JarContent fnew = new JarContent(newJar); JarContent fold = new JarContent(oldJar)) {
+            return buildPatch(fnew, fold, excludes, metaInfIncludes, null, zipPatchFile, logDeletedFiles);
+        }
+    }
+
+    /** build the resulting patch from jars read sequentially from streams, for example while they are downloaded.
+     * <p>
+     * Each stream is read once: the old jar is indexed first, then only the entries of the new jar that differ
+     * from it are spooled to a temporary file until the patch is written. Streams are closed on return.
+     *
+     * @see #buildPatch(File, File, Pattern[], Pattern[], File, boolean)
+     */
+    public boolean buildPatch(InputStream newJar, InputStream oldJar, Pattern[] excludes, Pattern[] metaInfIncludes, File zipPatchFile, boolean logDeletedFiles) throws IOException {
+        try(JarContent fnew = new JarContent(newJar); JarContent fold = new JarContent(oldJar)) {
+            return buildPatch(fnew, fold, excludes, metaInfIncludes, null, zipPatchFile, logDeletedFiles);
+        }
+    }
+
+    /** build the resulting patch from not yet initialized contents, which can mix jar files and jar streams.
+     * The contents are not closed.
+     *
+     * @see #buildPatch(File, File, Pattern[], Pattern[], File, boolean)
+     */
+    public boolean buildPatch(JarContent newJar, JarContent oldJar, Pattern[] excludes, Pattern[] metaInfIncludes, File zipPatchFile, boolean logDeletedFiles) throws IOException {
+        return buildPatch(newJar, oldJar, excludes, metaInfIncludes, null, zipPatchFile, logDeletedFiles);
+    }
+
+    /** build the resulting patch as a manifest, storing the payload of each entry in a shared {@link BlobStore}.
+     * <p>
+     * An entry already present in the store (for example because an earlier patch contains it) is not
+     * stored again. The standalone patch zip can be materialized with {@link BlobStore#pack(File, File)}.
+     *
+     * @param newJar - the new jar, use to compute difference
+     * @param oldJar - the old jar, use to compute difference
+     * @param excludes - an optional (can be null) regexp for excluding ressource(s)
+     * @param metaInfIncludes - an optional (can be null) regexp for including META-INF ressource(s)
+     * @param store - the store receiving entry payloads
+     * @param manifestFile - the result manifest, that reference the difference between newJar and oldJar
+     * @param logDeletedFiles - if true then record on the manifest the files that are found in oldJar but not in newJar
+     * @return true if a patch can be build, false if no difference have been found
+     * @throws IOException - if IO error occur
+     */
+    public boolean buildPatch(File newJar, File oldJar, Pattern[] excludes, Pattern[] metaInfIncludes, BlobStore store, File manifestFile, boolean logDeletedFiles) throws IOException {
+        try(JarContent fnew = new JarContent(newJar); JarContent fold = new JarContent(oldJar)) {
+            return buildPatch(fnew, fold, excludes, metaInfIncludes, store, manifestFile, logDeletedFiles);
+        }
+    }
+
+    /** build the patch as a zip file, or as a manifest if store is not null */
+    private boolean buildPatch(JarContent fnew, JarContent fold, Pattern[] excludes, Pattern[] metaInfIncludes, BlobStore store, File patchFile, boolean logDeletedFiles) throws IOException {
+        fnew.setMemoryBudget(fmemoryBudget);
+        fold.setMemoryBudget(fmemoryBudget);
         if(excludes != null){
             fnew.setExcludePattern(excludes);
             fold.setExcludePattern(excludes);
@@ -75,48 +177,176 @@ public class JarPatch {
             fnew.setMetaInfIncludePattern(metaInfIncludes);
             fold.setMetaInfIncludePattern(metaInfIncludes);
         }
-        fnew.initializeContent();
+        // old first, so that a streamed newJar only keep the entries that differ from it
         fold.initializeContent();
+        fnew.initializeContent(fold);
         
         // compute difference of deleted files from oldJar to newJar
-        List deldiff = logDeletedFiles? fold.computeDeletedEntry(fnew): Collections.EMPTY_LIST;
+        List<String> deldiff = logDeletedFiles? fold.computeDeletedEntry(fnew): Collections.<String>emptyList();
 
         // compute difference
         JarEntry[] diff = fnew.computeNewerEntry(fold);
         if(diff.length == 0 && deldiff.isEmpty())
             return false;
 
-        // create deleted log file in current directory
-        StringBuffer delDiffContent = null;
-        if (!deldiff.isEmpty()) {
-            delDiffContent = new StringBuffer();
-            for (int i = 0; i < deldiff.size(); i++) {
-                delDiffContent.append(deldiff.get(i));
-                delDiffContent.append(System.getProperty("line.separator"));
-            }
-        }
+        if(store != null)
+            writeManifest(fnew, diff, deldiff, store, patchFile);
+        else if(fvolumeSize > 0)
+            writeVolumes(fnew, diff, deldiff, patchFile);
+        else
+            writeZip(fnew, diff, deldiff, new FileOutputStream(patchFile));
+        return true;
+    }
 
+    /** write the patch entries, and the deleted log if any, as a zip file to the given stream, which is closed */
+    private void writeZip(JarContent fnew, JarEntry[] diff, List<String> deldiff, OutputStream zipPatch) throws IOException {
         // build output zip file
         ZipOutputStream out = null;
         try{
-            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipPatchFile)));
+            out = new ZipOutputStream(new BufferedOutputStream(zipPatch));
+            MessageDigest md5 = fwriteDigests ? newMd5() : null;
+            StringBuffer digests = new StringBuffer();
             for(int i = 0; i < diff.length; i++) {
                 out.putNextEntry(diff[i]);
-                fnew.writeEntry(diff[i], out);
+                // a directory has no content to verify
+                if(md5 != null && !diff[i].isDirectory()) {
+                    fnew.writeEntry(diff[i], new DigestOutputStream(out, md5));
+                    digests.append(BlobStore.toHex(md5.digest())).append(' ').append(diff[i].getName());
+                    digests.append(System.getProperty("line.separator"));
+                } else {
+                    fnew.writeEntry(diff[i], out);
+                }
+                out.closeEntry();
+            }
+            if (md5 != null) {
+                out.putNextEntry(new ZipEntry(DIGESTS_NAME));
+                out.write(digests.toString().getBytes(StandardCharsets.UTF_8));
                 out.closeEntry();
             }
-            if (delDiffContent != null) {
+            if (!deldiff.isEmpty()) {
                 out.putNextEntry(new ZipEntry(DELLOG_NAME));
-                out.write(delDiffContent.toString().getBytes());
+                out.write(deletedLog(deldiff).getBytes());
                 out.closeEntry( );
             }
             out.finish();
-            return true;
         } finally{
             if(out != null) try{out.close();}catch(IOException e){/*ignore*/}
         }
     }
 
+    /** split the patch entries in volumes, write them concurrently, then write the index */
+    private void writeVolumes(JarContent fnew, JarEntry[] diff, List<String> deldiff, File indexFile) throws IOException {
+        // diff is in offset order, so each volume read a contiguous range of the new jar
+        List<JarEntry[]> volumes = new ArrayList<>();
+        List<JarEntry> current = new ArrayList<>();
+        long currentSize = 0;
+        for(int i = 0; i < diff.length; i++) {
+            long size = estimateSize(diff[i]);
+            if(!current.isEmpty() && currentSize + size > fvolumeSize) {
+                volumes.add(current.toArray(new JarEntry[current.size()]));
+                current.clear();
+                currentSize = 0;
+            }
+            current.add(diff[i]);
+            currentSize += size;
+        }
+        if(!current.isEmpty())
+            volumes.add(current.toArray(new JarEntry[current.size()]));
+
+        String base = indexFile.getName();
+        if(base.lastIndexOf('.') > 0)
+            base = base.substring(0, base.lastIndexOf('.'));
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+
+        VolumeIndex index = new VolumeIndex();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(volumes.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<VolumeIndex.Volume>> written = new ArrayList<>(volumes.size());
+            for(int v = 0; v < volumes.size(); v++) {
+                int number = v + 1;
+                JarEntry[] entries = volumes.get(v);
+                File volumeFile = new File(dir, String.format("%s.%03d.zip", base, number));
+                written.add(executor.submit(() -> writeVolume(fnew, entries, number, volumeFile)));
+                for(JarEntry entry : entries)
+                    index.addEntry(number, entry.getName());
+            }
+            for(Future<VolumeIndex.Volume> f : written)
+                index.addVolume(f.get());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing volumes");
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        for(String deleted : deldiff)
+            index.addDeleted(deleted);
+        index.write(indexFile);
+    }
+
+    /** write one volume, as a standalone zip patch, and checksum it on the fly */
+    private VolumeIndex.Volume writeVolume(JarContent fnew, JarEntry[] entries, int number, File volumeFile) throws IOException {
+        MessageDigest sha256 = newSha256();
+        writeZip(fnew, entries, Collections.<String>emptyList(), new DigestOutputStream(new FileOutputStream(volumeFile), sha256));
+        return new VolumeIndex.Volume(number, volumeFile.getName(), volumeFile.length(), BlobStore.toHex(sha256.digest()));
+    }
+
+    /** approximate size of an entry in a patch zip: compressed data, local and central headers */
+    private static long estimateSize(JarEntry entry) {
+        long size = entry.getCompressedSize() != -1 ? entry.getCompressedSize() : Math.max(entry.getSize(), 0);
+        return size + 30 + 46 + 2 * entry.getName().length();
+    }
+
+    /** store the payload of the patch entries, then write the manifest that reference them */
+    private void writeManifest(JarContent fnew, JarEntry[] diff, List<String> deldiff, BlobStore store, File manifestFile) throws IOException {
+        List<BlobStore.ManifestEntry> entries = new ArrayList<>(diff.length);
+        for(int i = 0; i < diff.length; i++) {
+            try(BlobStore.BlobOutputStream out = store.newBlob()) {
+                fnew.writeEntry(diff[i], out);
+                entries.add(new BlobStore.ManifestEntry(diff[i].getName(), out.commit(), diff[i].getTime()));
+            }
+        }
+        store.writeManifest(manifestFile, entries, deldiff);
+    }
+
+    static MessageDigest newMd5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /** rename a file, atomically where the file system supports it */
+    static void moveAtomically(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** content of the deleted log: one deleted entry by line */
+    static String deletedLog(List<String> deldiff) {
+        StringBuffer delDiffContent = new StringBuffer();
+        for (int i = 0; i < deldiff.size(); i++) {
+            delDiffContent.append(deldiff.get(i));
+            delDiffContent.append(System.getProperty("line.separator"));
+        }
+        return delDiffContent.toString();
+    }
+
     /** helper method to build an Pattern array from a list of comma separate string pattern.
      * if no pattern, return EMPTY_PATTERNS.
      */
@@ -29,30 +29,62 @@
  */
 package org.jarpatch;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.apache.tools.ant.*;
+import org.apache.tools.ant.types.FileSet;
 
 /**
  * An Ant task for building zip patch, corresponding to the difference between 2 jar files.
  * <p>
  * usage:
  * <pre>
-    &lt:jarpatch newJar="myNewJar.jar" oldjar="myoldjar.jar" resultPatch="myPatch.zip" excludes=".*\.gif,.*\.jpg" logDeleteFile="true" &gt;
+    &lt:jarpatch newJar="myNewJar.jar" oldjar="myoldjar.jar" resultPatch="myPatch.zip" excludes=".*\.gif,.*\.jpg" logDeleteFile="true" memoryBudget="256" &gt;
  </pre>
+ * With a <code>store</code> attribute, entry payloads are written once in a shared {@link BlobStore}
+ * and <code>resultPatch</code> is a manifest referencing them.
+ * <p>
+ * Many pairs can be processed by one task, sharing patterns and options: each jar of the nested filesets is a
+ * new jar, the old jar is the file of same relative path under <code>oldDir</code>, and the patch is written
+ * to the same relative path under <code>destDir</code>, with a <code>.zip</code> suffix:
+ * <pre>
+    &lt:jarpatch oldDir="release-1.0" destDir="patches" logDeleteFile="true"&gt;
+        &lt:fileset dir="release-1.1" includes="**&#47;*.jar"/&gt;
+    &lt:/jarpatch&gt;
+ </pre>
+ * A fingerprint of the inputs and options (size, modification time and central directory hash of both jars)
+ * is recorded next to each patch, in a <code>.fingerprint</code> file; the patch is not rebuilt while the
+ * fingerprint match, unless <code>force="true"</code>.
+ * <p>
+ * With a <code>volumeSize</code> attribute (in megabytes), each patch is split in volumes written next to
+ * <code>resultPatch</code>, which is then the {@link VolumeIndex} of the volumes.
  * @author Norbert Barbosa
  * @version $Revision$
  */
 public class JarPatchTask extends Task {
+    static final String FINGERPRINT_SUFFIX = ".fingerprint";
+    private static final String FINGERPRINT_VERSION = "jarpatch-fingerprint 1";
+
     private File foldJar;
     private File fnewJar;
     private File fresultPatch;
     private String fexcludes;
     private String fmetaInfIncludes;
     private boolean logDeleteFile = false;
+    private long fmemoryBudget = 0;
+    private File fstore;
+    private boolean fforce = false;
+    private boolean fdigests = false;
+    private long fvolumeSize = 0;
+    private File foldDir;
+    private File fdestDir;
+    private final List<FileSet> ffilesets = new ArrayList<>();
 
     public void setExcludes(String excludes) {
         fexcludes = excludes;
@@ -78,14 +110,69 @@ public class JarPatchTask extends Task {
         logDeleteFile = v;
     }
 
+    /** when set, entry payloads are written once in this {@link BlobStore}, and resultPatch is a manifest referencing them */
+    public void setStore(File store) {
+        fstore = store;
+    }
+
+    /** bound, in megabytes, of the heap used to index each jar; unbounded if not set */
+    public void setMemoryBudget(long megabytes) {
+        fmemoryBudget = megabytes;
+    }
+
+    /** if true, add a <code>jarpatch_digests.log</code> to the patches, for {@link PatchApplier#setVerify(boolean)} */
+    public void setDigests(boolean digests) {
+        fdigests = digests;
+    }
+
+    /** split each patch in volumes of approximately this number of megabytes; resultPatch is then the {@link VolumeIndex} */
+    public void setVolumeSize(long megabytes) {
+        fvolumeSize = megabytes;
+    }
+
+    /** if true, rebuild the patches even when their fingerprint match */
+    public void setForce(boolean force) {
+        fforce = force;
+    }
+
+    /** directory of the old jars, for the nested fileset form */
+    public void setOldDir(File oldDir) {
+        foldDir = oldDir;
+    }
+
+    /** directory of the resulting patches, for the nested fileset form */
+    public void setDestDir(File destDir) {
+        fdestDir = destDir;
+    }
+
+    /** add a set of new jars */
+    public void addFileset(FileSet fileset) {
+        ffilesets.add(fileset);
+    }
+
     /** do the task */
     public void execute() throws BuildException {
-        if(foldJar == null || !foldJar.exists() || !foldJar.isFile())
-            throw new BuildException("oldJar attribute unspecified or invalid");
-        if(fnewJar == null || !fnewJar.exists() || !fnewJar.isFile())
-            throw new BuildException("newJar attribute unspecified or invalid");
-        if(fresultPatch == null)
-            throw new BuildException("resultPatch attribute unspecified or invalid");
+        if(ffilesets.isEmpty()){
+            if(foldJar == null || !foldJar.exists() || !foldJar.isFile())
+                throw new BuildException("oldJar attribute unspecified or invalid");
+            if(fnewJar == null || !fnewJar.exists() || !fnewJar.isFile())
+                throw new BuildException("newJar attribute unspecified or invalid");
+            if(fresultPatch == null)
+                throw new BuildException("resultPatch attribute unspecified or invalid");
+        } else {
+            if(foldJar != null || fnewJar != null || fresultPatch != null)
+                throw new BuildException("newJar, oldJar and resultPatch attributes cannot be used with nested filesets");
+            if(foldDir == null || !foldDir.isDirectory())
+                throw new BuildException("oldDir attribute unspecified or invalid");
+            if(fdestDir == null)
+                throw new BuildException("destDir attribute unspecified or invalid");
+        }
+        if(fmemoryBudget < 0)
+            throw new BuildException("memoryBudget attribute invalid: "+fmemoryBudget);
+        if(fvolumeSize < 0)
+            throw new BuildException("volumeSize attribute invalid: "+fvolumeSize);
+        if(fvolumeSize > 0 && fstore != null)
+            throw new BuildException("volumeSize and store attributes cannot be used together");
         Pattern[] excludes = null;
         if(fexcludes != null){
             try{
@@ -104,16 +191,112 @@ public class JarPatchTask extends Task {
                 throw new BuildException("metaInfIncludes attribute invalid: "+e.getMessage());
             }
         }
-        log("Generating "+fresultPatch+" patch from difference between new "+fnewJar+" and old "+foldJar+" with logDeleteFile="+logDeleteFile, Project.MSG_VERBOSE);
-        
+
         JarPatch jp = new JarPatch();
+        if(fmemoryBudget > 0)
+            jp.setMemoryBudget(fmemoryBudget * 1024 * 1024);
+        jp.setWriteDigests(fdigests);
+        jp.setVolumeSize(fvolumeSize * 1024 * 1024);
+        String options = "excludes="+fexcludes+"\nmetaInfIncludes="+fmetaInfIncludes+"\nlogDeleteFile="+logDeleteFile+"\ndigests="+fdigests
+            +"\nvolumeSize="+fvolumeSize
+            +"\nstore="+(fstore == null ? null : fstore.getAbsolutePath())+"\n";
         try {
-            if(!jp.buildPatch(fnewJar, foldJar, excludes, metaInfIncludes, fresultPatch, logDeleteFile))
-                log("files  "+fnewJar+" and "+foldJar+" contains no suitable difference: no patch builded");
+            BlobStore store = fstore != null ? new BlobStore(fstore) : null;
+            if(ffilesets.isEmpty()){
+                buildPatch(jp, fnewJar, foldJar, fresultPatch, excludes, metaInfIncludes, store, options);
+                return;
+            }
+            int built = 0, skipped = 0;
+            for(FileSet fs : ffilesets){
+                DirectoryScanner ds = fs.getDirectoryScanner(getProject());
+                File dir = fs.getDir(getProject());
+                for(String name : ds.getIncludedFiles()){
+                    File oldJar = new File(foldDir, name);
+                    if(!oldJar.isFile()){
+                        log("no old jar "+oldJar+" for new jar "+new File(dir, name)+": skipped", Project.MSG_WARN);
+                        continue;
+                    }
+                    File resultPatch = new File(fdestDir, name+".zip");
+                    File parent = resultPatch.getParentFile();
+                    if(!parent.isDirectory() && !parent.mkdirs())
+                        throw new BuildException("unable to create directory "+parent);
+                    if(buildPatch(jp, new File(dir, name), oldJar, resultPatch, excludes, metaInfIncludes, store, options))
+                        built++;
+                    else
+                        skipped++;
+                }
+            }
+            log(built+" patch(es) processed, "+skipped+" up to date, in "+fdestDir);
         } catch(IOException e) {
             e.printStackTrace();
             throw new BuildException("Unexpected IOException: "+e.getMessage());
         }
+    }
+
+    /** build one patch, unless its fingerprint match.
+     * @return false if the patch was up to date
+     */
+    private boolean buildPatch(JarPatch jp, File newJar, File oldJar, File resultPatch, Pattern[] excludes, Pattern[] metaInfIncludes, BlobStore store, String options) throws IOException {
+        File fingerprintFile = new File(resultPatch.getPath()+FINGERPRINT_SUFFIX);
+        String inputs = FINGERPRINT_VERSION+"\nnew="+fingerprint(newJar)+"\nold="+fingerprint(oldJar)+"\n"+options;
+        if(!fforce && isUpToDate(fingerprintFile, inputs, resultPatch)){
+            log(resultPatch+" is up to date", Project.MSG_VERBOSE);
+            return false;
+        }
+        fingerprintFile.delete();
+        log("Generating "+resultPatch+" patch from difference between new "+newJar+" and old "+oldJar+" with logDeleteFile="+logDeleteFile, Project.MSG_VERBOSE);
+
+        boolean built = store != null
+            ? jp.buildPatch(newJar, oldJar, excludes, metaInfIncludes, store, resultPatch, logDeleteFile)
+            : jp.buildPatch(newJar, oldJar, excludes, metaInfIncludes, resultPatch, logDeleteFile);
+        if(!built)
+            log("files  "+newJar+" and "+oldJar+" contains no suitable difference: no patch builded");
+        writeFingerprint(fingerprintFile, inputs + (built ? "result="+fingerprintOutput(resultPatch) : "result=none") + "\n");
+        return true;
+    }
+
+    /** cheap fingerprint of a jar: size, modification time and central directory hash */
+    static String fingerprint(File jar) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(jar, "r")){
+            return jar.getAbsolutePath()+" "+raf.length()+" "+jar.lastModified()+" "
+                +BlobStore.toHex(CentralDirectory.locate(raf).digest(raf));
+        }
+    }
 
+    /** fingerprint of the resulting patch, so that a patch removed or modified since is rebuilt.
+     * The index of a patch split in volumes is fingerprinted with each of its volumes.
+     */
+    private String fingerprintOutput(File resultPatch) throws IOException {
+        StringBuilder ret = new StringBuilder().append(resultPatch.length()).append(' ').append(resultPatch.lastModified());
+        if(fvolumeSize > 0) {
+            File dir = resultPatch.getAbsoluteFile().getParentFile();
+            for(VolumeIndex.Volume volume : VolumeIndex.read(resultPatch).getVolumes()) {
+                File volumeFile = new File(dir, volume.getFileName());
+                ret.append(' ').append(volume.getFileName()).append(' ').append(volumeFile.length()).append(' ').append(volumeFile.lastModified());
+            }
+        }
+        return ret.toString();
+    }
+
+    private boolean isUpToDate(File fingerprintFile, String inputs, File resultPatch) throws IOException {
+        if(!fingerprintFile.isFile())
+            return false;
+        String recorded = new String(Files.readAllBytes(fingerprintFile.toPath()), StandardCharsets.UTF_8);
+        if(recorded.equals(inputs+"result=none\n"))
+            return true;
+        if(!resultPatch.isFile())
+            return false;
+        try {
+            return recorded.equals(inputs+"result="+fingerprintOutput(resultPatch)+"\n");
+        } catch(IOException e) {
+            // unreadable volume index, build it again
+            return false;
+        }
+    }
+
+    private static void writeFingerprint(File fingerprintFile, String content) throws IOException {
+        try(OutputStream out = new FileOutputStream(fingerprintFile)){
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
     }
 }
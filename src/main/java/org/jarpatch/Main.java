@@ -31,6 +31,7 @@ package org.jarpatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.StringTokenizer;
 import java.util.regex.Pattern;
 
 /**
@@ -39,32 +40,71 @@ import java.util.regex.Pattern;
  * The patch will contains all new file introduced on the newJar, and all file that have been 
  * modified from the oldJar. Changed file is determined from computed MD5 hash key.
  * <p>
- * usage: <b>org.jarpatch.Main -old oldJar -new newJar -out resultZip [-exclude RegexpPattern] [-logDeleteFile]</b>,
+ * usage: <b>org.jarpatch.Main -old oldJar -new newJar -out resultZip [-exclude RegexpPattern] [-logDeleteFile] [-memoryBudget megabytes]</b>,
  * <br>with:
  * <ul>
- * <li> -old oldJar: the old jar file name
- * <li> -new newJar: the new jar file name
+ * <li> -old oldJar: the old jar file name, or <code>-</code> to read it from the standard input
+ * <li> -new newJar: the new jar file name, or <code>-</code> to read it from the standard input
  * <li> -out resultZip: the result patch zp file, witch contains new or modified file from the newJar 
  * to oldJar
  * <li> -excludes regexpPattern,regexpPattern,...: an optional comma separate list of regexp (JDK1.4 regexp), 
  * that specifiy entries to be ignored (like <code>.+\.gif</code>)
  * <li> -logDeleteFile: a flag indicating if need to generate a log file named <code>jarpatch_deleted.log</code>,
  * which contains the list of files that are found in oldJar but not in newJar (one line by file)
+ * <li> -memoryBudget megabytes: an optional bound of the heap used to index each jar; beyond it the
+ * indexes are spilled to temporary files, which allow diffing jars far bigger than the heap
+ * <li> -store storeDir: write entry payloads once into the given {@link BlobStore}, and -out
+ * becomes a small manifest referencing them
+ * <li> -digests: add a file named <code>jarpatch_digests.log</code> to the patch, which contains the MD5
+ * of each patch entry
+ * <li> -volumeSize megabytes: split the patch in volumes of approximately this size, written next to -out,
+ * which becomes the {@link VolumeIndex} of the volumes
+ * </ul>
+ * Apply a patch in place on an exploded directory:
+ * <ul>
+ * <li> <b>org.jarpatch.Main -apply resultZip -target dir [-verify]</b>: write the patch entries and delete the
+ * files of <code>jarpatch_deleted.log</code> under dir; with -verify, check the written files against
+ * <code>jarpatch_digests.log</code>
+ * <li> <b>org.jarpatch.Main -applyVolumes index -target dir [-verify]</b>: apply the available volumes of a split
+ * patch, that are not already applied; run it again as more volumes arrive
+ * </ul>
+ * Maintenance of a store:
+ * <ul>
+ * <li> <b>org.jarpatch.Main -store storeDir -pack manifest -out resultZip</b>: materialize the standalone
+ * patch zip of a manifest
+ * <li> <b>org.jarpatch.Main -store storeDir -gc manifest,manifest,...</b>: delete the blobs that none of the
+ * given manifests reference
+ * </ul>
  * @author Norbert Barbosa
  * @version $Revision$
  */
 public class Main {
+    /** file name standing for the standard input */
+    private static final File STDIN = new File("-");
     
     /** helper method to print the main usage, and exit */
     private static void printUsageAndExit(){
-        System.out.println("usage: java org.jarpatch.Main -old oldJar -new newJar -out resultZip [-excludes RegexpPattern] [-metaInfIncludes RegexpPattern] [-logDeleteFile]");
+        System.out.println("usage: java org.jarpatch.Main -old oldJar -new newJar -out resultZip [-excludes RegexpPattern] [-metaInfIncludes RegexpPattern] [-logDeleteFile] [-memoryBudget megabytes] [-store storeDir] [-digests] [-volumeSize megabytes]");
+        System.out.println("   or: java org.jarpatch.Main -store storeDir -pack manifest -out resultZip");
+        System.out.println("   or: java org.jarpatch.Main -store storeDir -gc manifest,manifest,...");
+        System.out.println("   or: java org.jarpatch.Main -apply resultZip -target dir [-verify]");
+        System.out.println("   or: java org.jarpatch.Main -applyVolumes index -target dir [-verify]");
         System.out.println("with");
-        System.out.println("-old oldJar: the old jar/war file name");
-        System.out.println("-new newJar: the new jar/war file name");
+        System.out.println("-old oldJar: the old jar/war file name, or - to read it from the standard input");
+        System.out.println("-new newJar: the new jar/war file name, or - to read it from the standard input");
         System.out.println("-out resultZip: the result patch zp file, witch contains new or modified file from the newJar to oldJar");
         System.out.println("-excludes regexpPattern,regexpPattern,...: an optional comma separate list of regexp (JDK1.4 regexp), that specify entries to be ignored");
         System.out.println("-metaInfIncludes regexpPattern,regexpPattern,...: an optional comma separate list of regexp (JDK1.4 regexp), that specify META-INF entries to be included");
         System.out.println("-logDeleteFile: a flag indicating if need to generate a log file named <code>jarpatch_deleted.log</code>, which contains the list of files that are found in oldJar but not in newJar (one line by file)");
+        System.out.println("-memoryBudget megabytes: an optional bound of the heap used to index each jar, beyond it indexes are spilled to temporary files");
+        System.out.println("-store storeDir: store entries once in a content addressed store, -out is then a manifest referencing them");
+        System.out.println("-pack manifest: build the standalone patch zip -out from a manifest of the store");
+        System.out.println("-gc manifest,manifest,...: delete the blobs of the store that are not referenced by the given manifests");
+        System.out.println("-digests: add a file named jarpatch_digests.log to the patch, which contains the MD5 of each patch entry");
+        System.out.println("-apply resultZip -target dir: apply the patch in place on the exploded directory dir");
+        System.out.println("-volumeSize megabytes: split the patch in volumes of approximately this size, -out is then the index of the volumes");
+        System.out.println("-applyVolumes index -target dir: apply the available volumes of a split patch, not applied yet, on the exploded directory dir");
+        System.out.println("-verify: check the files written by -apply against the jarpatch_digests.log of the patch");
         System.exit(1);
     }
     
@@ -76,13 +116,23 @@ public class Main {
         Pattern[] exclude = null;
         Pattern[] metaInfIncludes = null;
         boolean logDeleteFile = false;
+        long memoryBudget = 0;
+        File store = null;
+        File pack = null;
+        String gc = null;
+        boolean digests = false;
+        File apply = null;
+        File applyVolumes = null;
+        long volumeSize = 0;
+        File target = null;
+        boolean verify = false;
         for(int i = 0; i < args.length; i++) {
             if("-h".equalsIgnoreCase(args[i]) || "-help".equalsIgnoreCase(args[i]))
                 printUsageAndExit();
             else if("-old".equalsIgnoreCase(args[i]))
-                oldJar = extractFile(args[++i], "-old", true);
+                oldJar = extractJar(args[++i], "-old");
             else if("-new".equalsIgnoreCase(args[i]))
-                newJar = extractFile(args[++i], "-new", true);
+                newJar = extractJar(args[++i], "-new");
             else if("-out".equalsIgnoreCase(args[i]))
                 patch = extractFile(args[++i], "-out", false);
             else if("-excludes".equalsIgnoreCase(args[i]))
@@ -91,14 +141,103 @@ public class Main {
                 metaInfIncludes = JarPatch.tokenizePatterns(args[++i]);
             else if("-logDeleteFile".equalsIgnoreCase(args[i]))
                 logDeleteFile = true;
+            else if("-memoryBudget".equalsIgnoreCase(args[i]))
+                memoryBudget = extractMegabytes(args[++i], "-memoryBudget");
+            else if("-store".equalsIgnoreCase(args[i]))
+                store = new File(args[++i]);
+            else if("-pack".equalsIgnoreCase(args[i]))
+                pack = extractFile(args[++i], "-pack", true);
+            else if("-gc".equalsIgnoreCase(args[i]))
+                gc = args[++i];
+            else if("-digests".equalsIgnoreCase(args[i]))
+                digests = true;
+            else if("-apply".equalsIgnoreCase(args[i]))
+                apply = extractFile(args[++i], "-apply", true);
+            else if("-applyVolumes".equalsIgnoreCase(args[i]))
+                applyVolumes = extractFile(args[++i], "-applyVolumes", true);
+            else if("-volumeSize".equalsIgnoreCase(args[i]))
+                volumeSize = extractMegabytes(args[++i], "-volumeSize");
+            else if("-target".equalsIgnoreCase(args[i]))
+                target = new File(args[++i]);
+            else if("-verify".equalsIgnoreCase(args[i]))
+                verify = true;
+        }
+        if(apply != null || applyVolumes != null){
+            if(target == null || !target.isDirectory()){
+                System.err.println("-target should be an existing directory");
+                printUsageAndExit();
+            }
+            PatchApplier pa = new PatchApplier();
+            pa.setVerify(verify);
+            if(apply != null)
+                System.out.println(pa.apply(apply, target)+" file(s) written or deleted in "+target);
+            else {
+                int pending = pa.applyVolumes(applyVolumes, target);
+                for(File volume : pa.getMismatchedVolumes())
+                    System.out.println(volume+" does not match its checksum yet, it was not applied");
+                System.out.println(pending+" volume(s) still to be applied on "+target);
+            }
+            return;
+        }
+        if(pack != null || gc != null){
+            if(store == null || (pack != null && patch == null))
+                printUsageAndExit();
+            BlobStore bs = new BlobStore(store);
+            if(pack != null)
+                bs.pack(pack, patch);
+            if(gc != null){
+                StringTokenizer tk = new StringTokenizer(gc, ",");
+                File[] manifests = new File[tk.countTokens()];
+                for(int i = 0; i < manifests.length; i++)
+                    manifests[i] = extractFile(tk.nextToken().trim(), "-gc", true);
+                System.out.println(bs.gc(manifests)+" unreferenced blob(s) deleted from "+store);
+            }
+            return;
         }
         if(oldJar == null || newJar == null || patch == null)
             printUsageAndExit();
+        if(STDIN.equals(oldJar) && STDIN.equals(newJar)){
+            System.err.println("only one of -old and -new can be read from the standard input");
+            printUsageAndExit();
+        }
+        boolean fromStdin = STDIN.equals(oldJar) || STDIN.equals(newJar);
+        if(store != null && fromStdin){
+            System.err.println("-store cannot be used while reading from the standard input");
+            printUsageAndExit();
+        }
+        if(store != null && volumeSize > 0){
+            System.err.println("-store and -volumeSize cannot be used together");
+            printUsageAndExit();
+        }
         JarPatch jp = new JarPatch();
-        if(!jp.buildPatch(newJar, oldJar, exclude, metaInfIncludes, patch, logDeleteFile))
+        if(memoryBudget > 0)
+            jp.setMemoryBudget(memoryBudget);
+        jp.setWriteDigests(digests);
+        jp.setVolumeSize(volumeSize);
+        boolean built;
+        if(fromStdin){
+            try(JarContent fnew = openJar(newJar); JarContent fold = openJar(oldJar)){
+                built = jp.buildPatch(fnew, fold, exclude, metaInfIncludes, patch, logDeleteFile);
+            }
+        } else {
+            built = store != null
+                ? jp.buildPatch(newJar, oldJar, exclude, metaInfIncludes, new BlobStore(store), patch, logDeleteFile)
+                : jp.buildPatch(newJar, oldJar, exclude, metaInfIncludes, patch, logDeleteFile);
+        }
+        if(!built)
             System.out.println("jar files contains no difference: no patch build");
     }
 
+    /** helper method to open a jar, from the standard input if file is {@link #STDIN} */
+    private static JarContent openJar(File file) throws IOException {
+        return STDIN.equals(file) ? new JarContent(System.in) : new JarContent(file);
+    }
+
+    /** helper method to extract an existing jar file, or {@link #STDIN} */
+    private static File extractJar(String arg, String parameter) {
+        return STDIN.getPath().equals(arg) ? STDIN : extractFile(arg, parameter, true);
+    }
+
     /** helper method to extract a file and check if this file exist */
     private static File extractFile(String arg, String parameter, boolean shouldExist) {
         File ret = new File(arg);
@@ -108,4 +247,16 @@ public class Main {
         }
         return ret; 
     }
+
+    /** helper method to convert a positive number of megabytes to bytes */
+    private static long extractMegabytes(String arg, String parameter) {
+        try {
+            long ret = Long.parseLong(arg);
+            if(ret > 0)
+                return ret * 1024 * 1024;
+        } catch(NumberFormatException e) {/*fall through*/}
+        System.err.println(parameter+" should be a positive number of megabytes");
+        printUsageAndExit();
+        return 0;
+    }
 }
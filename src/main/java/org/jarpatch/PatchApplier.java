@@ -0,0 +1,324 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * apply a patch zip, as built by {@link JarPatch}, in place on an exploded directory (for example an exploded war).
+ * <p>
+ * Only the patch entries are written, and the files listed in <code>jarpatch_deleted.log</code> are removed, so the
+ * cost is proportional to the size of the patch, not to the size of the application. Each file is written to a
+ * temporary file next to its target, then renamed into place, so a reader never see a partially written file.
+ * Written files are synced to disk in batches, before being renamed.
+ * <p>
+ * When the patch contains a <code>jarpatch_digests.log</code> (see {@link JarPatch#setWriteDigests(boolean)}),
+ * touched files can be verified against it once applied.
+ * <p>
+ * A patch split in volumes (see {@link JarPatch#setVolumeSize(long)}) is applied with {@link #applyVolumes(File, File)},
+ * volume by volume, in any order, as they become available.
+ *
+ * @version $Revision$
+ */
+public class PatchApplier {
+    private int fsyncBatchSize = 256;
+    private boolean fverify = false;
+    private List<File> fmismatchedVolumes = new ArrayList<>();
+
+    /** number of files written before being synced and renamed into place, default 256 */
+    public void setSyncBatchSize(int syncBatchSize) {
+        if(syncBatchSize <= 0)
+            throw new IllegalArgumentException("sync batch size must be positive: "+syncBatchSize);
+        fsyncBatchSize = syncBatchSize;
+    }
+
+    /** if true, verify the written files against the digests of the patch; the patch must contain them */
+    public void setVerify(boolean verify) {
+        fverify = verify;
+    }
+
+    /** apply the given patch zip on the exploded directory.
+     *
+     * @param zipPatchFile - the patch
+     * @param targetDir - the exploded directory to update
+     * @return the number of files written or deleted
+     * @throws IOException - if IO error occur, or if a verified file does not match its digest
+     */
+    public int apply(File zipPatchFile, File targetDir) throws IOException {
+        if(!targetDir.isDirectory())
+            throw new IOException(targetDir+" is not a directory");
+        try(ZipFile patch = new ZipFile(zipPatchFile)) {
+            Map<String, String> digests = null;
+            if(fverify) {
+                ZipEntry digestsEntry = patch.getEntry(JarPatch.DIGESTS_NAME);
+                if(digestsEntry == null)
+                    throw new IOException(zipPatchFile+" contains no "+JarPatch.DIGESTS_NAME+", it cannot be verified");
+                digests = readDigests(patch.getInputStream(digestsEntry));
+            }
+            int touched = writeEntries(patch, targetDir);
+            ZipEntry dellog = patch.getEntry(JarPatch.DELLOG_NAME);
+            if(dellog != null)
+                touched += deleteEntries(patch.getInputStream(dellog), targetDir);
+            if(digests != null)
+                verify(digests, targetDir);
+            return touched;
+        }
+    }
+
+    /** apply the volumes of a split patch that are available next to the index and not applied yet, then
+     * remove the deleted entries once all volumes have been applied.
+     * <p>
+     * A volume is available when its file has the size recorded by the index and matches its checksum; a
+     * volume of the right size that does not match is still being downloaded or is corrupt, it is left pending
+     * and reported by {@link #getMismatchedVolumes()}, and the other volumes are applied anyway.
+     * Applied volumes are recorded by checksum in <code>&lt;index&gt;.applied</code>, so this can be called again as
+     * more volumes arrive, or after an interruption, without applying a volume twice. The state also records the
+     * checksum of the index, and is discarded if the index has been replaced, by the next patch for instance.
+     *
+     * @param indexFile - the volume index
+     * @param targetDir - the exploded directory to update
+     * @return the number of volumes still to be applied, 0 once the patch is completely applied
+     * @throws IOException - if IO error occur
+     */
+    public int applyVolumes(File indexFile, File targetDir) throws IOException {
+        VolumeIndex index = VolumeIndex.read(indexFile);
+        File stateFile = new File(indexFile.getPath()+".applied");
+        String header = "index "+checksum(indexFile);
+        Set<String> applied = new HashSet<>();
+        List<String> state = stateFile.isFile() ? Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8) : Collections.<String>emptyList();
+        if(!state.isEmpty() && header.equals(state.get(0))) {
+            applied.addAll(state);
+        } else {
+            // no state yet, or the state of another index published at the same path
+            if(stateFile.exists() && !stateFile.delete())
+                throw new IOException("unable to delete "+stateFile);
+            record(stateFile, header);
+        }
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        int pending = 0;
+        fmismatchedVolumes = new ArrayList<>();
+        for(VolumeIndex.Volume volume : index.getVolumes()) {
+            String key = "volume "+volume.getChecksum();
+            if(applied.contains(key))
+                continue;
+            File volumeFile = new File(dir, volume.getFileName());
+            if(!volumeFile.isFile() || volumeFile.length() != volume.getSize()) {
+                pending++;
+                continue;
+            }
+            if(!checksum(volumeFile).equals(volume.getChecksum())) {
+                fmismatchedVolumes.add(volumeFile);
+                pending++;
+                continue;
+            }
+            apply(volumeFile, targetDir);
+            record(stateFile, key);
+            applied.add(key);
+        }
+        if(pending == 0 && !applied.contains("deleted")) {
+            StringBuilder dellog = new StringBuilder();
+            for(String name : index.getDeleted())
+                dellog.append(name).append('\n');
+            deleteEntries(new ByteArrayInputStream(dellog.toString().getBytes()), targetDir);
+            record(stateFile, "deleted");
+        }
+        return pending;
+    }
+
+    /** return the volumes of the last {@link #applyVolumes(File, File)} call that had the expected size but
+     * did not match their checksum, so were not applied
+     */
+    public List<File> getMismatchedVolumes() {
+        return fmismatchedVolumes;
+    }
+
+    /** SHA-256 of a file */
+    private static String checksum(File file) throws IOException {
+        MessageDigest sha256 = JarPatch.newSha256();
+        try(InputStream in = new DigestInputStream(new FileInputStream(file), sha256)) {
+            byte[] buf = new byte[64 * 1024];
+            while(in.read(buf) != -1) {/*nothing*/}
+        }
+        return BlobStore.toHex(sha256.digest());
+    }
+
+    /** durably append a line to the state file */
+    private static void record(File stateFile, String line) throws IOException {
+        try(FileOutputStream out = new FileOutputStream(stateFile, true)) {
+            out.write((line+"\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /** write all the entries of the patch, by batch */
+    int writeEntries(ZipFile patch, File targetDir) throws IOException {
+        List<File[]> pending = new ArrayList<>(fsyncBatchSize);
+        int written = 0;
+        try {
+            for(Enumeration<? extends ZipEntry> e = patch.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                String name = entry.getName();
+                if(JarPatch.DELLOG_NAME.equals(name) || JarPatch.DIGESTS_NAME.equals(name))
+                    continue;
+                File target = resolve(targetDir, name);
+                if(entry.isDirectory()) {
+                    if(!target.isDirectory() && !target.mkdirs())
+                        throw new IOException("unable to create directory "+target);
+                    continue;
+                }
+                File parent = target.getParentFile();
+                if(!parent.isDirectory() && !parent.mkdirs())
+                    throw new IOException("unable to create directory "+parent);
+                File tmp = File.createTempFile(".jarpatch", ".tmp", parent);
+                pending.add(new File[] { tmp, target });
+                try(InputStream in = patch.getInputStream(entry); OutputStream out = new FileOutputStream(tmp)) {
+                    copy(in, out);
+                }
+                if(entry.getTime() != -1)
+                    tmp.setLastModified(entry.getTime());
+                written++;
+                if(pending.size() >= fsyncBatchSize)
+                    commit(pending);
+            }
+            commit(pending);
+        } finally {
+            // only left over on failure
+            for(File[] p : pending)
+                p[0].delete();
+        }
+        return written;
+    }
+
+    /** sync the pending files, rename them into place, then sync their directories */
+    private static void commit(List<File[]> pending) throws IOException {
+        for(File[] p : pending)
+            sync(p[0], false);
+        Set<File> dirs = new HashSet<>();
+        for(File[] p : pending) {
+            JarPatch.moveAtomically(p[0], p[1]);
+            dirs.add(p[1].getParentFile());
+        }
+        pending.clear();
+        for(File dir : dirs)
+            sync(dir, true);
+    }
+
+    /** delete the files listed by the deleted log */
+    private static int deleteEntries(InputStream dellog, File targetDir) throws IOException {
+        int deleted = 0;
+        Set<File> dirs = new HashSet<>();
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(dellog))) {
+            String name;
+            while((name = in.readLine()) != null) {
+                if(name.isEmpty())
+                    continue;
+                File target = resolve(targetDir, name);
+                // a directory is only removed once it is empty
+                if(target.exists() && target.delete()) {
+                    deleted++;
+                    dirs.add(target.getParentFile());
+                }
+            }
+        }
+        for(File dir : dirs)
+            sync(dir, true);
+        return deleted;
+    }
+
+    /** check the written files against the digests of the patch */
+    private static void verify(Map<String, String> digests, File targetDir) throws IOException {
+        for(Map.Entry<String, String> e : digests.entrySet()) {
+            if(e.getKey().endsWith("/")) {
+                // directory entries of patches which digested them too
+                if(!resolve(targetDir, e.getKey()).isDirectory())
+                    throw new IOException("verification failed: "+e.getKey()+" is not a directory");
+                continue;
+            }
+            MessageDigest md5 = JarPatch.newMd5();
+            try(InputStream in = new DigestInputStream(new FileInputStream(resolve(targetDir, e.getKey())), md5)) {
+                byte[] buf = new byte[8 * 1024];
+                while(in.read(buf) != -1) {/*nothing*/}
+            }
+            if(!BlobStore.toHex(md5.digest()).equals(e.getValue()))
+                throw new IOException("verification failed: "+e.getKey()+" does not match its digest");
+        }
+    }
+
+    /** parse a digests log: one <code>md5 name</code> line by entry */
+    static Map<String, String> readDigests(InputStream digests) throws IOException {
+        Map<String, String> ret = new LinkedHashMap<>();
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(digests, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                int sep = line.indexOf(' ');
+                if(sep == -1) {
+                    if(line.isEmpty()) continue;
+                    throw new IOException("invalid "+JarPatch.DIGESTS_NAME+" line: "+line);
+                }
+                ret.put(line.substring(sep + 1), line.substring(0, sep));
+            }
+        }
+        return ret;
+    }
+
+    /** resolve an entry name in the target directory, refusing names that escape it */
+    static File resolve(File targetDir, String name) throws IOException {
+        File target = new File(targetDir, name);
+        String root = targetDir.getCanonicalPath() + File.separator;
+        if(!target.getCanonicalPath().startsWith(root) && !target.getCanonicalPath().equals(targetDir.getCanonicalPath()))
+            throw new IOException("entry "+name+" is outside of "+targetDir);
+        return target;
+    }
+
+    private static void sync(File file, boolean directory) throws IOException {
+        try(FileChannel ch = FileChannel.open(file.toPath(), directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            ch.force(true);
+        } catch(IOException e) {
+            // directories cannot be opened, nor synced, on every platform
+            if(!directory) throw e;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8 * 1024];
+        int len;
+        while((len = in.read(buf)) != -1)
+            out.write(buf, 0, len);
+    }
+}
@@ -0,0 +1,155 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * index of a patch split in volumes, see {@link JarPatch#setVolumeSize(long)}.
+ * <p>
+ * Each volume is a standalone patch zip; the index give, for each volume, its file name (relative to the
+ * index directory), its size and its SHA-256 checksum, the volume of each patch entry, and the deleted entries.
+ * <p>
+ * Format (UTF-8, one record by line):
+ * <pre>
+ * jarpatch-volumes 1
+ * volume &lt;number&gt; &lt;size&gt; &lt;sha256&gt; &lt;file name&gt;
+ * entry &lt;volume number&gt; &lt;entry name&gt;
+ * deleted &lt;deleted entry name&gt;
+ * </pre>
+ *
+ * @version $Revision$
+ */
+public class VolumeIndex {
+    static final String HEADER = "jarpatch-volumes 1";
+
+    private final List<Volume> fvolumes = new ArrayList<>();
+    private final Map<String, Integer> fentries = new LinkedHashMap<>();
+    private final List<String> fdeleted = new ArrayList<>();
+
+    /** the volumes, in number order */
+    public List<Volume> getVolumes() {
+        return Collections.unmodifiableList(fvolumes);
+    }
+
+    /** the deleted entries, to be removed once all volumes are applied */
+    public List<String> getDeleted() {
+        return Collections.unmodifiableList(fdeleted);
+    }
+
+    /** the number of the volume that contains the given entry, or -1 */
+    public int getVolumeOf(String entry) {
+        Integer volume = fentries.get(entry);
+        return volume == null ? -1 : volume;
+    }
+
+    void addVolume(Volume volume) {
+        fvolumes.add(volume);
+    }
+
+    void addEntry(int volume, String name) {
+        fentries.put(name, volume);
+    }
+
+    void addDeleted(String name) {
+        fdeleted.add(name);
+    }
+
+    /** write the index, atomically */
+    void write(File index) throws IOException {
+        File tmp = new File(index.getPath()+".tmp");
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER+"\n");
+            for(Volume v : fvolumes)
+                out.write("volume "+v.getNumber()+" "+v.getSize()+" "+v.getChecksum()+" "+v.getFileName()+"\n");
+            for(Map.Entry<String, Integer> e : fentries.entrySet())
+                out.write("entry "+e.getValue()+" "+e.getKey()+"\n");
+            for(String name : fdeleted)
+                out.write("deleted "+name+"\n");
+        }
+        JarPatch.moveAtomically(tmp, index);
+    }
+
+    /** read an index */
+    public static VolumeIndex read(File index) throws IOException {
+        VolumeIndex ret = new VolumeIndex();
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+            if(!HEADER.equals(in.readLine()))
+                throw new IOException(index+" is not a jarpatch volume index");
+            String line;
+            while((line = in.readLine()) != null) {
+                try {
+                    if(line.startsWith("volume ")) {
+                        String[] f = line.split(" ", 5);
+                        ret.addVolume(new Volume(Integer.parseInt(f[1]), f[4], Long.parseLong(f[2]), f[3]));
+                    } else if(line.startsWith("entry ")) {
+                        String[] f = line.split(" ", 3);
+                        ret.addEntry(Integer.parseInt(f[1]), f[2]);
+                    } else if(line.startsWith("deleted ")) {
+                        ret.addDeleted(line.substring("deleted ".length()));
+                    } else if(!line.isEmpty()) {
+                        throw new IOException("invalid index line in "+index+": "+line);
+                    }
+                } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("invalid index line in "+index+": "+line);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** one volume of the patch */
+    public static class Volume {
+        private final int fnumber;
+        private final String ffileName;
+        private final long fsize;
+        private final String fchecksum;
+
+        public Volume(int number, String fileName, long size, String checksum) {
+            fnumber = number;
+            ffileName = fileName;
+            fsize = size;
+            fchecksum = checksum;
+        }
+
+        public int getNumber() { return fnumber; }
+        /** file name of the volume, relative to the directory of the index */
+        public String getFileName() { return ffileName; }
+        public long getSize() { return fsize; }
+        /** SHA-256 of the volume file */
+        public String getChecksum() { return fchecksum; }
+    }
+}
@@ -0,0 +1,112 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit Test for {@link org.jarpatch.BlobStore}
+ *
+ * @version $Revision$
+ */
+public class TestBlobStore {
+
+    @Test
+    public void testSharedBlobs() throws IOException {
+        BlobStore store = new BlobStore(Fixtures.newDir("testSharedBlobs-store"));
+        File newJar = new File(getClass().getResource("/test-new2.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File first = new File(store.getRoot(), "first.manifest");
+        File second = new File(store.getRoot(), "second.manifest");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, store, first, true));
+        long blobs = countBlobs(store);
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, store, second, true));
+        assertEquals("blobs stored twice", blobs, countBlobs(store));
+
+        assertEquals("nothing to collect", 0, store.gc(new File[] { first }));
+        assertEquals("blobs collected", blobs, store.gc(new File[0]));
+        assertEquals(0, countBlobs(store));
+    }
+
+    @Test
+    public void testPack() throws IOException {
+        BlobStore store = new BlobStore(Fixtures.newDir("testPack-store"));
+        File newJar = new File(getClass().getResource("/test-new2.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File manifest = new File(store.getRoot(), "patch.manifest");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, store, manifest, true));
+        File packed = new File(getClass().getResource("/").getFile(), "testPack-packed.zip");
+        store.pack(manifest, packed);
+
+        File direct = new File(getClass().getResource("/").getFile(), "testPack-direct.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, direct, true));
+
+        try (ZipFile zdirect = new ZipFile(direct); ZipFile zpacked = new ZipFile(packed)) {
+            Set<String> names = zdirect.stream().map(ZipEntry::getName).collect(Collectors.toSet());
+            assertEquals("packed content mismatch", names, zpacked.stream().map(ZipEntry::getName).collect(Collectors.toSet()));
+            for (String name : names) {
+                assertTrue(name + " mismatch", Arrays.equals(readAll(zdirect, zdirect.getEntry(name)), readAll(zpacked, zpacked.getEntry(name))));
+            }
+        }
+    }
+
+    private static long countBlobs(BlobStore store) throws IOException {
+        return Files.walk(store.getRoot().toPath())
+                .filter(p -> p.getParent().getFileName().toString().length() == 2 && Files.isRegularFile(p))
+                .count();
+    }
+
+    private static byte[] readAll(ZipFile zip, ZipEntry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = zip.getInputStream(entry)) {
+            byte[] buf = new byte[2048];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+}
@@ -32,13 +32,28 @@ package org.jarpatch;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -164,4 +179,250 @@ public class TestJarPatch {
         assertTrue( new JarFile( result ).stream().anyMatch( jarEntry -> jarEntry.getName().equals( "META-INF/org/apache/logging/log4j/core/config/plugins/Log4j2Plugins.dat" ) ) );
         assertFalse( new JarFile( result ).stream().anyMatch( jarEntry -> jarEntry.getName().equals( "META-INF/MANIFEST.MF" ) ) );
     }
+
+    @Test
+    public void testBoundedMemoryDiff() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new2.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File unbounded = new File(getClass().getResource("/").getFile(), "testBoundedMemoryDiff-unbounded.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, unbounded, true));
+
+        // a one byte budget spill every single entry to its own sorted run
+        JarPatch jp = new JarPatch();
+        jp.setMemoryBudget(1);
+        File bounded = new File(getClass().getResource("/").getFile(), "testBoundedMemoryDiff-bounded.zip");
+        assertTrue("No difference found", jp.buildPatch(newJar, oldJar, null, null, bounded, true));
+
+        assertEquals("patch content mismatch", entryNames(unbounded), entryNames(bounded));
+        assertEquals("patch content mismatch", entryContents(unbounded), entryContents(bounded));
+    }
+
+    @Test
+    public void testBoundedMemoryWar() throws IOException {
+        JarPatch jp = new JarPatch();
+        jp.setMemoryBudget(1);
+
+        File result = new File(getClass().getResource("/").getFile(), "testBoundedMemoryWar-diff.zip");
+        if (result.exists())
+            result.delete();
+
+        File newJar = new File(getClass().getResource("/test-new.war").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.war").getFile());
+        assertTrue("No difference found", jp.buildPatch(newJar, oldJar, null, null, result, false));
+        assertTrue(result.exists());
+    }
+
+    private static Set<String> entryNames(File zip) throws IOException {
+        try (ZipFile zfile = new ZipFile(zip)) {
+            return zfile.stream().map(ZipEntry::getName).collect(Collectors.toSet());
+        }
+    }
+
+    @Test
+    public void testStreamDiff() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new2.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File fromFiles = new File(getClass().getResource("/").getFile(), "testStreamDiff-files.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, fromFiles, true));
+
+        File fromStreams = new File(getClass().getResource("/").getFile(), "testStreamDiff-streams.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(new FileInputStream(newJar), new FileInputStream(oldJar), null, null, fromStreams, true));
+
+        assertEquals("patch content mismatch", entryNames(fromFiles), entryNames(fromStreams));
+        assertEquals("patch content mismatch", entryContents(fromFiles), entryContents(fromStreams));
+    }
+
+    @Test
+    public void testStreamBoundedMemoryDiff() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File fromFiles = new File(getClass().getResource("/").getFile(), "testStreamBoundedMemoryDiff-files.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, fromFiles, true));
+
+        // the old index is spilled, so the whole new jar is spooled and located through a spilled index too
+        JarPatch jp = new JarPatch();
+        jp.setMemoryBudget(1);
+        File fromStreams = new File(getClass().getResource("/").getFile(), "testStreamBoundedMemoryDiff-streams.zip");
+        assertTrue("No difference found", jp.buildPatch(new FileInputStream(newJar), new FileInputStream(oldJar), null, null, fromStreams, true));
+
+        assertEquals("patch content mismatch", entryContents(fromFiles), entryContents(fromStreams));
+    }
+
+    @Test
+    public void testStreamChannel() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File fromFiles = new File(getClass().getResource("/").getFile(), "testStreamChannel-files.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, fromFiles, true));
+
+        File fromChannel = new File(getClass().getResource("/").getFile(), "testStreamChannel-channel.zip");
+        try (JarContent fnew = new JarContent(FileChannel.open(newJar.toPath())); JarContent fold = new JarContent(oldJar)) {
+            assertTrue("No difference found", new JarPatch().buildPatch(fnew, fold, null, null, fromChannel, true));
+        }
+        assertEquals("patch content mismatch", entryContents(fromFiles), entryContents(fromChannel));
+    }
+
+    @Test
+    public void testStreamFromStdin() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        File fromFiles = new File(getClass().getResource("/").getFile(), "testStreamFromStdin-files.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, fromFiles, true));
+
+        File fromStdin = new File(getClass().getResource("/").getFile(), "testStreamFromStdin-stdin.zip");
+        InputStream stdin = System.in;
+        try (InputStream in = new FileInputStream(newJar)) {
+            System.setIn(in);
+            Main.main(new String[] { "-old", oldJar.getPath(), "-new", "-", "-out", fromStdin.getPath(), "-logDeleteFile" });
+        } finally {
+            System.setIn(stdin);
+        }
+        assertEquals("patch content mismatch", entryContents(fromFiles), entryContents(fromStdin));
+    }
+
+    @Test
+    public void testStreamWar() throws IOException {
+        JarPatch jp = new JarPatch();
+
+        File result = new File(getClass().getResource("/").getFile(), "testStreamWar-diff.zip");
+        if (result.exists())
+            result.delete();
+
+        File newJar = new File(getClass().getResource("/test-new.war").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.war").getFile());
+        try (JarContent fnew = new JarContent(new FileInputStream(newJar)); JarContent fold = new JarContent(oldJar)) {
+            assertTrue("No difference found", jp.buildPatch(fnew, fold, null, null, result, false));
+        }
+        assertTrue(result.exists());
+        assertEquals("patch content mismatch", Collections.singleton("test/WEB-INF/lib/test.jar"), entryNames(result));
+    }
+
+    @Test
+    public void testStreamWithoutReference() throws IOException {
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+        try (JarContent fnew = new JarContent(new FileInputStream(newJar)); JarContent fold = new JarContent(oldJar)) {
+            fold.initializeContent();
+            fnew.initializeContent();
+            JarEntry[] diff = fnew.computeNewerEntry(fold);
+            assertEquals(1, diff.length);
+            assertEquals("test/test1.txt", diff[0].getName());
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            fnew.writeEntry(diff[0], content);
+            assertEquals("content mismatch", entryContents(newJar).get("test/test1.txt"), content.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testStreamNoDiff() throws IOException {
+        File result = new File(getClass().getResource("/").getFile(), "testStreamNoDiff-diff.zip");
+        if (result.exists())
+            result.delete();
+
+        File newJar = new File(getClass().getResource("/test-meta_inf-new.jar").getFile());
+        File oldJar = new File(getClass().getResource("/test-meta_inf-old.jar").getFile());
+        assertFalse("Difference found", new JarPatch().buildPatch(new FileInputStream(newJar), new FileInputStream(oldJar), null, null, result, false));
+        assertFalse(result.exists());
+    }
+
+    @Test
+    public void testPatchInArchiveOrder() throws IOException {
+        File dir = new File(getClass().getResource("/").getFile());
+        File newJar = new File(dir, "testPatchInArchiveOrder-new.zip");
+        File oldJar = new File(dir, "testPatchInArchiveOrder-old.zip");
+        String[] names = { "c.txt", "a/b.txt", "b.txt", "a.txt" };
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(newJar))) {
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry entry = new ZipEntry(names[i]);
+                byte[] content = ("content of " + names[i]).getBytes();
+                if (i % 2 == 0) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(oldJar))) {
+            out.putNextEntry(new ZipEntry("z.txt"));
+            out.closeEntry();
+        }
+
+        File result = new File(dir, "testPatchInArchiveOrder-diff.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, result, false));
+        try (ZipFile zresult = new ZipFile(result)) {
+            assertEquals("patch order mismatch", Arrays.asList(names), zresult.stream().map(ZipEntry::getName).collect(Collectors.toList()));
+            BufferedReader br = new BufferedReader(new InputStreamReader(zresult.getInputStream(zresult.getEntry("a/b.txt"))));
+            assertEquals("content mismatch", "content of a/b.txt", br.readLine());
+        }
+    }
+
+    @Test
+    public void testPrefixedArchive() throws IOException {
+        File dir = new File(getClass().getResource("/").getFile());
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        // a self-extracting jar, or a launch script, is an archive with arbitrary data in front of it
+        File prefixed = new File(dir, "testPrefixedArchive-new.zip");
+        try (FileOutputStream out = new FileOutputStream(prefixed)) {
+            out.write(new byte[5000]);
+            Files.copy(newJar.toPath(), out);
+        }
+
+        File expected = new File(dir, "testPrefixedArchive-expected.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, expected, true));
+        File result = new File(dir, "testPrefixedArchive-diff.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(prefixed, oldJar, null, null, result, true));
+
+        assertEquals("patch content mismatch", entryContents(expected), entryContents(result));
+    }
+
+    @Test
+    public void testBoundedMemoryPrefixed() throws IOException {
+        File dir = new File(getClass().getResource("/").getFile());
+        File newJar = new File(getClass().getResource("/test-new.zip").getFile());
+        File oldJar = new File(getClass().getResource("/test-old.zip").getFile());
+
+        // the local headers of a prefixed archive cannot be read sequentially, it is read from the central directory
+        File prefixed = new File(dir, "testBoundedMemoryPrefixed-new.zip");
+        try (FileOutputStream out = new FileOutputStream(prefixed)) {
+            out.write(new byte[5000]);
+            Files.copy(newJar.toPath(), out);
+        }
+
+        File expected = new File(dir, "testBoundedMemoryPrefixed-expected.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(newJar, oldJar, null, null, expected, true));
+        JarPatch jp = new JarPatch();
+        jp.setMemoryBudget(1);
+        File result = new File(dir, "testBoundedMemoryPrefixed-diff.zip");
+        assertTrue("No difference found", jp.buildPatch(prefixed, oldJar, null, null, result, true));
+
+        assertEquals("patch content mismatch", entryContents(expected), entryContents(result));
+    }
+
+    private static Map<String, String> entryContents(File zip) throws IOException {
+        Map<String, String> ret = new LinkedHashMap<>();
+        try (ZipFile zfile = new ZipFile(zip)) {
+            for (ZipEntry entry : Collections.list(zfile.entries())) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                try (InputStream in = zfile.getInputStream(entry)) {
+                    byte[] buf = new byte[2048];
+                    for (int n; (n = in.read(buf)) != -1; )
+                        content.write(buf, 0, n);
+                }
+                ret.put(entry.getName(), content.toString("UTF-8"));
+            }
+        }
+        return ret;
+    }
 }
@@ -0,0 +1,160 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit Test for {@link org.jarpatch.JarPatchTask}
+ *
+ * @version $Revision$
+ */
+public class TestJarPatchTask {
+
+    @Test
+    public void testUpToDate() throws IOException {
+        File dir = Fixtures.newDir("testUpToDate");
+        File newJar = copy("/test-new2.zip", new File(dir, "new.zip"));
+        File oldJar = copy("/test-old.zip", new File(dir, "old.zip"));
+        File result = new File(dir, "patch.zip");
+
+        List<String> messages = new ArrayList<>();
+        JarPatchTask task = newTask(messages);
+        task.setNewJar(newJar);
+        task.setOldJar(oldJar);
+        task.setResultPatch(result);
+        task.setLogDeleteFile(true);
+
+        task.execute();
+        assertTrue(result.exists());
+        assertTrue(new File(dir, "patch.zip" + JarPatchTask.FINGERPRINT_SUFFIX).exists());
+        assertFalse("unexpected up to date", messages.contains(result + " is up to date"));
+
+        task.execute();
+        assertTrue("not up to date", messages.contains(result + " is up to date"));
+
+        // a changed input is detected
+        messages.clear();
+        copy("/test-new.zip", newJar);
+        task.execute();
+        assertFalse("unexpected up to date", messages.contains(result + " is up to date"));
+
+        // as well as a removed patch
+        result.delete();
+        task.execute();
+        assertTrue(result.exists());
+    }
+
+    @Test
+    public void testUpToDateVolumes() throws IOException {
+        File dir = Fixtures.newDir("testUpToDateVolumes");
+        File result = new File(dir, "patch.idx");
+
+        List<String> messages = new ArrayList<>();
+        JarPatchTask task = newTask(messages);
+        task.setNewJar(copy("/test-new.zip", new File(dir, "new.zip")));
+        task.setOldJar(copy("/test-old.zip", new File(dir, "old.zip")));
+        task.setResultPatch(result);
+        task.setVolumeSize(1);
+
+        task.execute();
+        File volume = new File(dir, VolumeIndex.read(result).getVolumes().get(0).getFileName());
+        assertTrue(volume.exists());
+        task.execute();
+        assertTrue("not up to date", messages.contains(result + " is up to date"));
+
+        // the index alone is not the patch, a removed volume is detected
+        messages.clear();
+        volume.delete();
+        task.execute();
+        assertFalse("unexpected up to date", messages.contains(result + " is up to date"));
+        assertTrue(volume.exists());
+    }
+
+    @Test
+    public void testFileset() throws IOException {
+        File dir = Fixtures.newDir("testFileset");
+        copy("/test-new2.zip", new File(dir, "new/lib/a.zip"));
+        copy("/test-new.war", new File(dir, "new/b.war"));
+        copy("/test-old.zip", new File(dir, "old/lib/a.zip"));
+        copy("/test-old.war", new File(dir, "old/b.war"));
+
+        List<String> messages = new ArrayList<>();
+        JarPatchTask task = newTask(messages);
+        task.setOldDir(new File(dir, "old"));
+        task.setDestDir(new File(dir, "patches"));
+        task.setLogDeleteFile(true);
+        FileSet fs = new FileSet();
+        fs.setDir(new File(dir, "new"));
+        task.addFileset(fs);
+
+        task.execute();
+        assertTrue(new File(dir, "patches/lib/a.zip.zip").exists());
+        assertTrue(new File(dir, "patches/b.war.zip").exists());
+
+        task.execute();
+        assertEquals("0 patch(es) processed, 2 up to date, in " + new File(dir, "patches"), messages.get(messages.size() - 1));
+    }
+
+    private JarPatchTask newTask(List<String> messages) {
+        Project project = new Project();
+        project.init();
+        project.addBuildListener(new DefaultLogger() {
+            @Override
+            public void messageLogged(BuildEvent event) {
+                messages.add(event.getMessage());
+            }
+        });
+        JarPatchTask task = new JarPatchTask();
+        task.setProject(project);
+        return task;
+    }
+
+    private File copy(String resource, File to) throws IOException {
+        to.getParentFile().mkdirs();
+        Files.copy(new File(getClass().getResource(resource).getFile()).toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return to;
+    }
+}
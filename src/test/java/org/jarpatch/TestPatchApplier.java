@@ -0,0 +1,310 @@
+/*  jarpatch - https://github.com/chrbayer84/jarpatch
+    Copyright (c) 2004 Norbert Barbosa, 2017 Christian Bayer
+    All rights reserved.
+
+    Redistribution and use in source and binary forms, with or without
+    modification, are permitted provided that the following conditions are met:
+    1. Redistributions of source code must retain the above copyright
+       notice, this list of conditions and the following disclaimer.
+    2. Redistributions in binary form must reproduce the above copyright
+       notice, this list of conditions and the following disclaimer in the
+       documentation and/or other materials provided with the distribution.
+    3. All advertising materials mentioning features or use of this software
+       must display the following acknowledgement:
+       This product includes software developed by the <organization>.
+    4. Neither the name of the <organization> nor the
+       names of its contributors may be used to endorse or promote products
+       derived from this software without specific prior written permission.
+
+    THIS SOFTWARE IS PROVIDED BY NORBERT BARBOSA, CHRISTIAN BAYER ''AS IS'' AND ANY
+    EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+    WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+    DISCLAIMED. IN NO EVENT SHALL NORBERT BARBOSA, CHRISTIAN BAYER BE LIABLE FOR ANY
+    DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+    (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+    LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+    ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+    (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+    SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jarpatch;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit Test for {@link org.jarpatch.PatchApplier}
+ *
+ * @version $Revision$
+ */
+public class TestPatchApplier {
+
+    @Test
+    public void testApply() throws IOException {
+        File dir = Fixtures.newDir("testApply");
+        File exploded = explode("/test-old.zip", new File(dir, "exploded"));
+
+        JarPatch jp = new JarPatch();
+        jp.setWriteDigests(true);
+        File patch = new File(dir, "patch.zip");
+        assertTrue("No difference found", jp.buildPatch(resource("/test-new.zip"), resource("/test-old.zip"), null, null, patch, true));
+
+        PatchApplier pa = new PatchApplier();
+        pa.setVerify(true);
+        pa.setSyncBatchSize(1);
+        assertEquals(1, pa.apply(patch, exploded));
+        assertEquals("exploded content mismatch", contents(explode("/test-new.zip", new File(dir, "expected"))), contents(exploded));
+    }
+
+    @Test
+    public void testApplyDeleted() throws IOException {
+        File dir = Fixtures.newDir("testApplyDeleted");
+        File exploded = explode("/test-old.zip", new File(dir, "exploded"));
+
+        File patch = new File(dir, "patch.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(resource("/test-new2.zip"), resource("/test-old.zip"), null, null, patch, true));
+
+        assertEquals(1, new PatchApplier().apply(patch, exploded));
+        assertEquals("exploded content mismatch", contents(explode("/test-new2.zip", new File(dir, "expected"))), contents(exploded));
+    }
+
+    @Test
+    public void testApplyNewDirectory() throws IOException {
+        File dir = Fixtures.newDir("testApplyNewDirectory");
+        File newJar = new File(dir, "new.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(newJar))) {
+            out.putNextEntry(new ZipEntry("test/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("newdir/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("newdir/new.txt"));
+            out.write("new".getBytes());
+            out.closeEntry();
+        }
+        File exploded = explode("/test-old.zip", new File(dir, "exploded"));
+
+        // a directory entry has no content to verify
+        JarPatch jp = new JarPatch();
+        jp.setWriteDigests(true);
+        File patch = new File(dir, "patch.zip");
+        assertTrue("No difference found", jp.buildPatch(newJar, resource("/test-old.zip"), null, null, patch, false));
+
+        PatchApplier pa = new PatchApplier();
+        pa.setVerify(true);
+        pa.apply(patch, exploded);
+        assertTrue(new File(exploded, "newdir").isDirectory());
+        assertEquals("new", new String(Files.readAllBytes(new File(exploded, "newdir/new.txt").toPath())));
+    }
+
+    @Test
+    public void testVerifyWithoutDigests() throws IOException {
+        File dir = Fixtures.newDir("testVerifyWithoutDigests");
+        File exploded = explode("/test-old.zip", new File(dir, "exploded"));
+
+        File patch = new File(dir, "patch.zip");
+        assertTrue("No difference found", new JarPatch().buildPatch(resource("/test-new.zip"), resource("/test-old.zip"), null, null, patch, false));
+
+        PatchApplier pa = new PatchApplier();
+        pa.setVerify(true);
+        try {
+            pa.apply(patch, exploded);
+            fail("patch without digests verified");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEntryOutsideTarget() throws IOException {
+        File dir = Fixtures.newDir("testEntryOutsideTarget");
+        File exploded = new File(dir, "exploded");
+        exploded.mkdirs();
+
+        File patch = new File(dir, "patch.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch))) {
+            out.putNextEntry(new ZipEntry("../escaped.txt"));
+            out.write("escaped".getBytes());
+            out.closeEntry();
+        }
+        try {
+            new PatchApplier().apply(patch, exploded);
+            fail("entry written outside of the target directory");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(!new File(dir, "escaped.txt").exists());
+    }
+
+    @Test
+    public void testApplyVolumes() throws IOException {
+        File dir = Fixtures.newDir("testApplyVolumes");
+        File newJar = new File(dir, "new.zip");
+        File oldJar = new File(dir, "old.zip");
+        writeVolumeJars(newJar, oldJar);
+        File exploded = explode(oldJar, new File(dir, "exploded"));
+
+        // a one byte volume size put each entry in its own volume
+        JarPatch jp = new JarPatch();
+        jp.setVolumeSize(1);
+        jp.setWriteDigests(true);
+        File index = new File(dir, "patch.idx");
+        assertTrue("No difference found", jp.buildPatch(newJar, oldJar, null, null, index, true));
+        VolumeIndex vindex = VolumeIndex.read(index);
+        assertEquals(2, vindex.getVolumes().size());
+        assertEquals(2, vindex.getVolumeOf("dir1/file3.txt"));
+        assertEquals(Arrays.asList("dir0/deleted.txt"), vindex.getDeleted());
+
+        // the second volume has not arrived yet
+        File second = new File(dir, vindex.getVolumes().get(1).getFileName());
+        File away = new File(dir, "away.zip");
+        assertTrue(second.renameTo(away));
+        PatchApplier pa = new PatchApplier();
+        pa.setVerify(true);
+        assertEquals(1, pa.applyVolumes(index, exploded));
+        assertTrue("deleted before all volumes are applied", new File(exploded, "dir0/deleted.txt").exists());
+
+        assertTrue(away.renameTo(second));
+        assertEquals(0, pa.applyVolumes(index, exploded));
+        assertEquals(0, pa.applyVolumes(index, exploded));
+        assertEquals("exploded content mismatch", contents(explode(newJar, new File(dir, "expected"))), contents(exploded));
+    }
+
+    @Test
+    public void testApplyCorruptVolume() throws IOException {
+        File dir = Fixtures.newDir("testApplyCorruptVolume");
+        File newJar = new File(dir, "new.zip");
+        File oldJar = new File(dir, "old.zip");
+        writeVolumeJars(newJar, oldJar);
+        File exploded = explode(oldJar, new File(dir, "exploded"));
+
+        JarPatch jp = new JarPatch();
+        jp.setVolumeSize(1);
+        File index = new File(dir, "patch.idx");
+        assertTrue("No difference found", jp.buildPatch(newJar, oldJar, null, null, index, true));
+        VolumeIndex vindex = VolumeIndex.read(index);
+
+        // a downloader may preallocate the first volume to its full size, the second one is then applied anyway
+        File first = new File(dir, vindex.getVolumes().get(0).getFileName());
+        byte[] content = Files.readAllBytes(first.toPath());
+        byte[] corrupt = content.clone();
+        corrupt[corrupt.length / 2] ^= 0xff;
+        Files.write(first.toPath(), corrupt);
+        PatchApplier pa = new PatchApplier();
+        assertEquals(1, pa.applyVolumes(index, exploded));
+        assertEquals(Collections.singletonList(first), pa.getMismatchedVolumes());
+        assertEquals("new content 3", new String(Files.readAllBytes(new File(exploded, "dir1/file3.txt").toPath())));
+        assertTrue("deleted before all volumes are applied", new File(exploded, "dir0/deleted.txt").exists());
+
+        Files.write(first.toPath(), content);
+        assertEquals(0, pa.applyVolumes(index, exploded));
+        assertTrue(pa.getMismatchedVolumes().isEmpty());
+        assertEquals("exploded content mismatch", contents(explode(newJar, new File(dir, "expected"))), contents(exploded));
+    }
+
+    @Test
+    public void testApplyVolumesRebuiltIndex() throws IOException {
+        File dir = Fixtures.newDir("testApplyVolumesRebuiltIndex");
+        File newJar = new File(dir, "new.zip");
+        File oldJar = new File(dir, "old.zip");
+        writeVolumeJars(newJar, oldJar);
+        File newerJar = new File(dir, "newer.zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(newerJar))) {
+            for (int i = 0; i < 5; i++) {
+                out.putNextEntry(new ZipEntry("dir" + (i % 2) + "/file" + i + ".txt"));
+                out.write(((i == 1 ? "newer content " : "new content ") + i).getBytes());
+                out.closeEntry();
+            }
+        }
+        File exploded = explode(oldJar, new File(dir, "exploded"));
+
+        JarPatch jp = new JarPatch();
+        jp.setVolumeSize(1);
+        File index = new File(dir, "patch.idx");
+        assertTrue("No difference found", jp.buildPatch(newJar, oldJar, null, null, index, true));
+        PatchApplier pa = new PatchApplier();
+        assertEquals(0, pa.applyVolumes(index, exploded));
+
+        // the next patch is published at the same path, the state of the previous one does not apply to it
+        assertTrue("No difference found", jp.buildPatch(newerJar, newJar, null, null, index, true));
+        assertEquals(0, pa.applyVolumes(index, exploded));
+        assertEquals("exploded content mismatch", contents(explode(newerJar, new File(dir, "expected"))), contents(exploded));
+    }
+
+    /** two jars which differ by one entry in each of two directories, and a deleted entry */
+    private static void writeVolumeJars(File newJar, File oldJar) throws IOException {
+        try (ZipOutputStream newOut = new ZipOutputStream(new FileOutputStream(newJar));
+             ZipOutputStream oldOut = new ZipOutputStream(new FileOutputStream(oldJar))) {
+            for (int i = 0; i < 5; i++) {
+                newOut.putNextEntry(new ZipEntry("dir" + (i % 2) + "/file" + i + ".txt"));
+                newOut.write(("new content " + i).getBytes());
+                newOut.closeEntry();
+                oldOut.putNextEntry(new ZipEntry("dir" + (i % 2) + "/file" + i + ".txt"));
+                oldOut.write(((i % 2 == 0 ? "new content " : "old content ") + i).getBytes());
+                oldOut.closeEntry();
+            }
+            oldOut.putNextEntry(new ZipEntry("dir0/deleted.txt"));
+            oldOut.write("deleted".getBytes());
+            oldOut.closeEntry();
+        }
+    }
+
+    private File resource(String name) {
+        return new File(getClass().getResource(name).getFile());
+    }
+
+    private File explode(String resource, File dir) throws IOException {
+        return explode(resource(resource), dir);
+    }
+
+    private File explode(File zipFile, File dir) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                File target = new File(dir, entry.getName());
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                    continue;
+                }
+                target.getParentFile().mkdirs();
+                try (InputStream in = zip.getInputStream(entry); OutputStream out = new FileOutputStream(target)) {
+                    byte[] buf = new byte[2048];
+                    int len;
+                    while ((len = in.read(buf)) != -1)
+                        out.write(buf, 0, len);
+                }
+            }
+        }
+        return dir;
+    }
+
+    /** relative path to content of all the files of a directory */
+    private static Map<String, String> contents(File dir) throws IOException {
+        Map<String, String> ret = new TreeMap<>();
+        List<Path> files = new ArrayList<>();
+        Files.walk(dir.toPath()).filter(Files::isRegularFile).forEach(files::add);
+        for (Path p : files)
+            ret.put(dir.toPath().relativize(p).toString(), Arrays.toString(Files.readAllBytes(p)));
+        return ret;
+    }
+}
\ No newline at end of file